@@ -14,4 +14,5 @@ dependencies {
     implementation("io.ktor:ktor-serialization-kotlinx-json:${Versions.ktor}")
 
     testImplementation("org.hamcrest:hamcrest:${Versions.hamcrest}")
+    testImplementation("io.ktor:ktor-client-mock:${Versions.ktor}")
 }
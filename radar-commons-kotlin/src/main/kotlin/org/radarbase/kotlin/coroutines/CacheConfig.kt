@@ -1,8 +1,11 @@
 package org.radarbase.kotlin.coroutines
 
+import kotlinx.coroutines.Dispatchers
+import kotlin.coroutines.CoroutineContext
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.minutes
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource
 
 data class CacheConfig(
     /** Duration after which the cache is considered stale and should be refreshed. */
@@ -17,10 +20,28 @@ data class CacheConfig(
      * is very variable.
      */
     val maxSimultaneousCompute: Int = 1,
+    /**
+     * If set, a value that should be refreshed is still returned from cache until it is older
+     * than this duration, while a single background coroutine refreshes it. Only values older than
+     * this duration make callers wait for a new value. If null, callers always wait for the
+     * refresh.
+     */
+    val maxStaleDuration: Duration? = null,
+    /**
+     * Context to refresh stale values in, if [maxStaleDuration] is set. If it contains a Job,
+     * background refreshes are children of that job, and its owner stops them by cancelling it.
+     * Otherwise, each [CachedValue] owns its refreshes, and [CachedValue.close] stops them.
+     */
+    val refreshContext: CoroutineContext = Dispatchers.Default,
+    /** Listener to cache hits, misses and computations, for example [CacheStats]. */
+    val listener: CacheListener? = null,
+    /** Source of time to determine the age of cached values. */
+    val timeSource: TimeSource = TimeSource.Monotonic,
 ) {
     init {
         require(retryDuration > Duration.ZERO) { "Cache fetch duration $retryDuration must be positive" }
         require(refreshDuration >= retryDuration) { "Cache maximum age $refreshDuration must be at least fetch timeout $retryDuration" }
         require(maxSimultaneousCompute > 0) { "At least one context must be able to compute the result" }
+        require(maxStaleDuration == null || maxStaleDuration >= refreshDuration) { "Cache maximum stale age $maxStaleDuration must be at least maximum age $refreshDuration" }
     }
 }
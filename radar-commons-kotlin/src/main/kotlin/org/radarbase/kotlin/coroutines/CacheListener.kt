@@ -0,0 +1,32 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlin.time.Duration
+
+/**
+ * Listener to cache events of [CachedValue], its subclasses and [LoadingCachedMap], set with
+ * [CacheConfig.listener]. It is called on every cache access, so implementations must be
+ * thread-safe and cheap. See [CacheStats] for an implementation that counts events.
+ */
+interface CacheListener {
+    /** A value was returned from cache. */
+    fun onHit() = Unit
+
+    /** A value was not in cache or had expired, so it was computed. */
+    fun onMiss() = Unit
+
+    /** An expired value was returned while it is refreshed in the background. Also counts as hit. */
+    fun onStaleHit() = Unit
+
+    /** A cached exception was rethrown. */
+    fun onExceptionHit() = Unit
+
+    /**
+     * A value was computed in [duration]. If [isSuccess] is false, the computation threw an
+     * exception. If [isConcurrent] is true, the value was computed while another computation
+     * was still running, see [CacheConfig.maxSimultaneousCompute].
+     */
+    fun onCompute(duration: Duration, isSuccess: Boolean, isConcurrent: Boolean) = Unit
+
+    /** [count] entries were removed because a size-bounded cache was full. */
+    fun onEviction(count: Int) = Unit
+}
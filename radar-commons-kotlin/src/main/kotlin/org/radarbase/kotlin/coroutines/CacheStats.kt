@@ -0,0 +1,104 @@
+package org.radarbase.kotlin.coroutines
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.LongAdder
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+
+/**
+ * Cache listener that counts cache events. Counters are [LongAdder]s, so they are cheap to
+ * update from many threads. Use [named] to aggregate the statistics of multiple caches.
+ */
+class CacheStats : CacheListener {
+    private val hits = LongAdder()
+    private val misses = LongAdder()
+    private val staleHits = LongAdder()
+    private val exceptionHits = LongAdder()
+    private val computes = LongAdder()
+    private val failedComputes = LongAdder()
+    private val concurrentComputes = LongAdder()
+    private val computeNanos = LongAdder()
+    private val evictions = LongAdder()
+
+    override fun onHit() = hits.increment()
+
+    override fun onMiss() = misses.increment()
+
+    override fun onStaleHit() = staleHits.increment()
+
+    override fun onExceptionHit() = exceptionHits.increment()
+
+    override fun onCompute(duration: Duration, isSuccess: Boolean, isConcurrent: Boolean) {
+        computes.increment()
+        computeNanos.add(duration.inWholeNanoseconds)
+        if (!isSuccess) failedComputes.increment()
+        if (isConcurrent) concurrentComputes.increment()
+    }
+
+    override fun onEviction(count: Int) = evictions.add(count.toLong())
+
+    /** Current values of the counters. */
+    fun snapshot() = Snapshot(
+        hits = hits.sum(),
+        misses = misses.sum(),
+        staleHits = staleHits.sum(),
+        exceptionHits = exceptionHits.sum(),
+        computes = computes.sum(),
+        failedComputes = failedComputes.sum(),
+        concurrentComputes = concurrentComputes.sum(),
+        totalComputeTime = computeNanos.sum().nanoseconds,
+        evictions = evictions.sum(),
+    )
+
+    /** Reset all counters to zero. */
+    fun reset() {
+        listOf(
+            hits,
+            misses,
+            staleHits,
+            exceptionHits,
+            computes,
+            failedComputes,
+            concurrentComputes,
+            computeNanos,
+            evictions,
+        ).forEach { it.reset() }
+    }
+
+    /** Cache statistics at a point in time. */
+    data class Snapshot(
+        val hits: Long,
+        val misses: Long,
+        val staleHits: Long,
+        val exceptionHits: Long,
+        val computes: Long,
+        val failedComputes: Long,
+        val concurrentComputes: Long,
+        val totalComputeTime: Duration,
+        val evictions: Long,
+    ) {
+        /** Fraction of cache accesses that were hits, or NaN if there were no accesses. */
+        val hitRate: Double
+            get() = hits.toDouble() / (hits + misses + exceptionHits)
+
+        /** Mean computation time, or zero if nothing was computed. */
+        val meanComputeTime: Duration
+            get() = if (computes > 0) totalComputeTime / computes.toDouble() else Duration.ZERO
+    }
+
+    companion object {
+        private val registry: ConcurrentMap<String, CacheStats> = ConcurrentHashMap()
+
+        /**
+         * Get the statistics registered with [name]. All caches that use the same name share
+         * the same counters.
+         */
+        @JvmStatic
+        fun named(name: String): CacheStats = registry.computeIfAbsent(name) { CacheStats() }
+
+        /** Snapshots of all statistics registered with [named]. */
+        @JvmStatic
+        fun snapshots(): Map<String, Snapshot> = registry.mapValues { (_, stats) -> stats.snapshot() }
+    }
+}
@@ -0,0 +1,24 @@
+package org.radarbase.kotlin.coroutines
+
+/**
+ * Set of strings that is cached for a duration of time, with the same refresh behaviour as
+ * [CachedSet]. The strings are stored in a [CompactStringSet], so large sets, like allow-lists of
+ * IDs, take little memory.
+ *
+ * @param supplier How to update the cache.
+ */
+class CachedStringSet(
+    cacheConfig: CacheConfig = CacheConfig(),
+    supplier: suspend () -> Iterable<String>,
+) : CachedValue<CompactStringSet>(cacheConfig, { CompactStringSet(supplier()) }) {
+    /** Whether the cache contains [value]. If it does not contain the value and [CacheConfig.retryDuration]
+     * has passed since the last try, it will update the cache and try once more. */
+    suspend fun contains(value: String): Boolean = test { value in it }
+
+    /**
+     * Get the value.
+     * If the cache is empty and [CacheConfig.retryDuration]
+     * has passed since the last try, it will update the cache and try once more.
+     */
+    override suspend fun get(): CompactStringSet = get { !it.isEmpty() }.value
+}
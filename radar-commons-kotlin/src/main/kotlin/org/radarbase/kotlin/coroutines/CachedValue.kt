@@ -2,8 +2,17 @@ package org.radarbase.kotlin.coroutines
 
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Semaphore
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.coroutines.coroutineContext
 import kotlin.time.Duration
@@ -16,18 +25,44 @@ internal typealias DeferredCache<T> = CompletableDeferred<CachedValue.CacheConte
  * Caches a value with full support for coroutines. The value that will be cached is computed by
  * [supplier].
  * Only one coroutine context will compute the value at a time, other coroutine contexts will wait
- * for it to finish.
+ * for it to finish. If [CacheConfig.maxStaleDuration] is set, expired values are returned while
+ * they are refreshed in the background. Background refreshes are owned by the job in
+ * [CacheConfig.refreshContext], if any, and otherwise by this value: then call [close] to cancel
+ * them when the value is no longer used.
  */
 open class CachedValue<T>(
     val config: CacheConfig,
     private val supplier: suspend () -> T,
-) {
+) : Closeable {
     private val cache = AtomicReference<CompletableDeferred<CacheContents<T>>>()
     private val semaphore: Semaphore? = if (config.maxSimultaneousCompute > 1) {
         Semaphore(config.maxSimultaneousCompute - 1)
     } else {
         null
     }
+    private val isRefreshing = AtomicBoolean(false)
+
+    /**
+     * Scope of background refreshes. If [CacheConfig.refreshContext] has a job, refreshes are its
+     * children, so that its owner can cancel them. Otherwise, this value has its own job.
+     */
+    private val refreshScope = CoroutineScope(
+        if (config.refreshContext[Job] != null) {
+            config.refreshContext
+        } else {
+            config.refreshContext + SupervisorJob()
+        },
+    )
+
+    /** Current background refresh. */
+    @Volatile
+    private var refreshJob: Job? = null
+
+    @Volatile
+    private var isClosed = false
+
+    @Volatile
+    private var lastRefreshFailure: TimeMark? = null
 
     /**
      * Query the cached value by running [transform] and return its result if valid. If
@@ -42,11 +77,13 @@ open class CachedValue<T>(
         val deferred = deferredResult.value
 
         return if (deferredResult is CacheMiss) {
+            config.listener?.onMiss()
             val result = deferred.computeAndCache()
             CacheMiss(transform(result))
         } else {
             val concurrentResult = deferred.concurrentComputeAndCache()
             if (concurrentResult != null) {
+                config.listener?.onMiss()
                 CacheMiss(transform(concurrentResult))
             } else {
                 deferred.awaitCache(transform, evaluateValid)
@@ -87,7 +124,7 @@ open class CachedValue<T>(
         while (coroutineContext.isActive) {
             val deferred = raceForDeferred().value
 
-            val newValue = CacheValue(value)
+            val newValue = CacheValue(value, config.timeSource.markNow())
             deferred.complete(newValue)
             if (deferred.await() == newValue) {
                 return
@@ -97,6 +134,15 @@ open class CachedValue<T>(
         }
     }
 
+    /**
+     * Set the cached value if nothing is cached or being computed yet, as if it was computed
+     * [age] ago. This is useful to fill the cache with a value that was stored elsewhere,
+     * without resetting its age.
+     * @return whether the value was set.
+     */
+    fun offer(value: T, age: Duration = Duration.ZERO): Boolean =
+        cache.compareAndSet(null, CompletableDeferred(CacheValue(value, config.timeSource.markNow() - age)))
+
     /**
      * Get cached value. If the cache is expired, fetch it again. The first coroutine context
      * that reaches this method will call [computeAndCache], others coroutine contexts will use the
@@ -104,7 +150,27 @@ open class CachedValue<T>(
      * often than [CacheConfig.retryDuration]. If the result was an exception, the exception is
      * rethrown from cache. It is recomputed if the [CacheConfig.exceptionCacheDuration] has passed.
      */
-    open suspend fun get(): T = query({ it }) { false }.value
+    open suspend fun get(): T {
+        // A value is expired for get() once the retry duration has passed.
+        freshValueOrNull(config.retryDuration)?.let {
+            config.listener?.onHit()
+            return it.value
+        }
+        return query({ it }) { false }.value
+    }
+
+    /**
+     * Get the cached contents without suspending, if the value has been computed and is younger
+     * than [age]. This does not allocate or update the cache, so it is suitable for frequent
+     * cache hits.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private fun freshValueOrNull(age: Duration): CacheValue<T>? {
+        val deferred = cache.get() ?: return null
+        if (!deferred.isCompleted || deferred.isCancelled) return null
+        val contents = deferred.getCompleted()
+        return if (contents is CacheValue && contents.isYoungerThan(age)) contents else null
+    }
 
     /**
      * Get cached value. If the cache is expired, fetch it again. The first coroutine context
@@ -125,13 +191,13 @@ open class CachedValue<T>(
         return query(predicate) { it }.value
     }
 
-    private suspend fun DeferredCache<T>.computeAndCache(): T {
+    private suspend fun DeferredCache<T>.computeAndCache(isConcurrent: Boolean = false): T {
         val result = try {
-            val value = supplier()
-            complete(CacheValue(value))
+            val value = compute(isConcurrent)
+            complete(CacheValue(value, config.timeSource.markNow()))
             value
         } catch (ex: Throwable) {
-            complete(CacheError(ex))
+            complete(CacheError(ex, config.timeSource.markNow()))
             throw ex
         }
         return result
@@ -144,28 +210,93 @@ open class CachedValue<T>(
             if (isCompleted) {
                 null
             } else {
-                computeAndCache()
+                computeAndCache(isConcurrent = true)
             }
         }
     }
 
+    /** Compute a new value with [supplier], reporting it to [CacheConfig.listener]. */
+    private suspend fun compute(isConcurrent: Boolean): T {
+        val listener = config.listener ?: return supplier()
+        val startTime = config.timeSource.markNow()
+        return try {
+            supplier().also {
+                listener.onCompute(startTime.elapsedNow(), isSuccess = true, isConcurrent)
+            }
+        } catch (ex: Throwable) {
+            listener.onCompute(startTime.elapsedNow(), isSuccess = false, isConcurrent)
+            throw ex
+        }
+    }
+
     private suspend fun <R> DeferredCache<T>.awaitCache(
         transform: suspend (T) -> R,
         evaluateValid: (R) -> Boolean,
     ): CacheResult<R> {
         val result = await().map(transform)
         return if (result.isExpired(evaluateValid)) {
+            if (result is CacheValue && result.isServableWhileStale()) {
+                config.listener?.run {
+                    onHit()
+                    onStaleHit()
+                }
+                refreshInBackground()
+                return CacheHit(result.value)
+            }
             // Either no new coroutine context had updated the cache value, then update it to
             // null. Otherwise, another suspend context is active and get() will await the
             // result from that context
             cache.compareAndSet(this, null)
             query(transform) { false }
         } else {
+            if (result is CacheError) {
+                config.listener?.onExceptionHit()
+            } else {
+                config.listener?.onHit()
+            }
             val value = result.getOrThrow()
             CacheHit(value)
         }
     }
 
+    /** Whether the value may still be returned while it is refreshed in the background. */
+    private fun CacheValue<*>.isServableWhileStale(): Boolean {
+        if (isClosed) return false
+        val maxStaleDuration = config.maxStaleDuration ?: return false
+        return !isExpired(maxStaleDuration)
+    }
+
+    /**
+     * Refresh the cached value in the background, replacing this deferred value if it is still
+     * current. Only one refresh runs at a time, and after a failed refresh, no new refresh is
+     * started until [CacheConfig.exceptionCacheDuration] has passed. No refresh is started after
+     * [close].
+     */
+    private fun DeferredCache<T>.refreshInBackground() {
+        if (isClosed) return
+        val failure = lastRefreshFailure
+        if (failure != null && !(failure + config.exceptionCacheDuration).hasPassedNow()) return
+        if (!isRefreshing.compareAndSet(false, true)) return
+
+        val previous = this
+        refreshJob = refreshScope.launch {
+            try {
+                val value = compute(isConcurrent = false)
+                val newContents: CacheContents<T> = CacheValue(value, config.timeSource.markNow())
+                lastRefreshFailure = null
+                cache.compareAndSet(previous, CompletableDeferred(newContents))
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Throwable) {
+                logger.warn("Failed to refresh cached value: {}", ex.toString())
+                lastRefreshFailure = config.timeSource.markNow()
+            }
+        }.also { job ->
+            // also called if the job is cancelled before it started
+            job.invokeOnCompletion { isRefreshing.set(false) }
+        }
+    }
+
     /**
      * Race for the first suspend context to create a CompletableDeferred object. All other contexts
      * will use that context to read their values.
@@ -206,6 +337,19 @@ open class CachedValue<T>(
         cache.set(null)
     }
 
+    /**
+     * Cancel the background refresh that is currently running, if any, and do not start new
+     * background refreshes. The value can still be used, but stale values are then refreshed
+     * while the caller waits.
+     */
+    override fun close() {
+        isClosed = true
+        refreshJob?.cancel()
+        if (refreshScope.coroutineContext[Job] !== config.refreshContext[Job]) {
+            refreshScope.cancel()
+        }
+    }
+
     sealed class CacheContents<T>(time: TimeMark?) {
         constructor() : this(null)
 
@@ -213,6 +357,9 @@ open class CachedValue<T>(
 
         open fun isExpired(age: Duration): Boolean = (time + age).hasPassedNow()
 
+        /** Whether the contents are younger than [age], without allocating a new time mark. */
+        internal fun isYoungerThan(age: Duration): Boolean = time.elapsedNow() < age
+
         abstract fun getOrThrow(): T
 
         abstract suspend fun <R> map(transform: suspend (T) -> R): CacheContents<R>
@@ -221,7 +368,8 @@ open class CachedValue<T>(
     class CacheError<T>
     internal constructor(
         val exception: Throwable,
-    ) : CacheContents<T>() {
+        time: TimeMark? = null,
+    ) : CacheContents<T>(time) {
         override fun isExpired(age: Duration): Boolean = exception is CancellationException ||
             super.isExpired(age)
 
@@ -258,4 +406,8 @@ open class CachedValue<T>(
 
     /** Cache miss, meaning the value was computed by the current coroutine. */
     data class CacheMiss<T>(override val value: T) : CacheResult<T>
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(CachedValue::class.java)
+    }
 }
@@ -0,0 +1,111 @@
+package org.radarbase.kotlin.coroutines
+
+import java.util.Arrays
+
+/**
+ * Immutable set of strings, stored as sorted UTF-8 bytes in a single array. It takes a fraction
+ * of the memory of a [Set] of [String] objects. A Bloom filter in front of the sorted array
+ * answers most lookups of strings that are not in the set without searching the array.
+ */
+class CompactStringSet(values: Iterable<String>) {
+    private val arena: ByteArray
+    private val offsets: IntArray
+    private val bloom: LongArray
+    private val bloomBits: Int
+
+    /** Number of strings in the set. */
+    val size: Int
+
+    init {
+        val encoded = values.mapTo(ArrayList()) { it.encodeToByteArray() }
+        encoded.sortWith { a, b -> Arrays.compareUnsigned(a, b) }
+
+        val distinct = ArrayList<ByteArray>(encoded.size)
+        encoded.forEach { bytes ->
+            if (distinct.isEmpty() || !distinct.last().contentEquals(bytes)) {
+                distinct += bytes
+            }
+        }
+        size = distinct.size
+
+        offsets = IntArray(size + 1)
+        arena = ByteArray(distinct.sumOf { it.size })
+        distinct.forEachIndexed { i, bytes ->
+            bytes.copyInto(arena, offsets[i])
+            offsets[i + 1] = offsets[i] + bytes.size
+        }
+
+        val numberOfWords = ((size.toLong() * BLOOM_BITS_PER_VALUE + 63) / 64)
+            .coerceIn(1, Int.MAX_VALUE / 64L)
+            .toInt()
+        bloom = LongArray(numberOfWords)
+        bloomBits = numberOfWords * 64
+        distinct.forEach { addToBloom(hash(it)) }
+    }
+
+    fun isEmpty(): Boolean = size == 0
+
+    operator fun contains(value: String): Boolean {
+        if (size == 0) return false
+        val bytes = value.encodeToByteArray()
+        if (!mightContain(hash(bytes))) return false
+
+        var low = 0
+        var high = size - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val comparison = Arrays.compareUnsigned(
+                arena,
+                offsets[mid],
+                offsets[mid + 1],
+                bytes,
+                0,
+                bytes.size,
+            )
+            when {
+                comparison < 0 -> low = mid + 1
+                comparison > 0 -> high = mid - 1
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    private fun addToBloom(hash: Long) {
+        forEachBloomBit(hash) { bit ->
+            bloom[bit ushr 6] = bloom[bit ushr 6] or (1L shl bit)
+        }
+    }
+
+    private fun mightContain(hash: Long): Boolean {
+        forEachBloomBit(hash) { bit ->
+            if (bloom[bit ushr 6] and (1L shl bit) == 0L) return false
+        }
+        return true
+    }
+
+    /** Compute the bloom filter bits of [hash] with double hashing. */
+    private inline fun forEachBloomBit(hash: Long, action: (Int) -> Unit) {
+        val hash1 = hash.toInt()
+        val hash2 = (hash ushr 32).toInt()
+        repeat(BLOOM_HASHES) { i ->
+            val combined = hash1 + i * hash2
+            action((combined and Int.MAX_VALUE) % bloomBits)
+        }
+    }
+
+    companion object {
+        /** Bloom filter bits per value, for a false positive rate of about 1%. */
+        private const val BLOOM_BITS_PER_VALUE = 10
+        private const val BLOOM_HASHES = 5
+
+        /** 64-bit FNV-1a hash. */
+        private fun hash(bytes: ByteArray): Long {
+            var hash = -0x340d631b7bdddcdbL
+            for (b in bytes) {
+                hash = (hash xor (b.toLong() and 0xFF)) * 0x100000001b3L
+            }
+            return hash
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import org.radarbase.kotlin.util.evictLeastRecentlyUsed
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Map of data that is cached per key for a duration of time. Unlike [CachedMap], each key is
+ * loaded, cached and refreshed separately by [loader]. Only one coroutine context loads a given
+ * key at a time, other contexts wait for it to finish. Keys without a value are cached as missing
+ * for [CacheConfig.retryDuration], keys with a value for [CacheConfig.refreshDuration].
+ *
+ * @param maxSize maximum number of keys to cache. If more keys are cached, approximately the
+ *      least recently used keys are removed.
+ * @param bulkLoader optional loader of many keys in a single call, used by [getAll]. Keys that
+ *      are missing from its result are cached as missing.
+ * @param loader How to load a single key. Returns null if the key has no value.
+ */
+class LoadingCachedMap<K : Any, V : Any>(
+    private val cacheConfig: CacheConfig = CacheConfig(),
+    private val maxSize: Int = Int.MAX_VALUE,
+    private val bulkLoader: (suspend (Set<K>) -> Map<K, V>)? = null,
+    private val loader: suspend (K) -> V?,
+) {
+    private val entries: ConcurrentMap<K, Entry<V>> = ConcurrentHashMap()
+
+    /** Keys that are currently loaded by [bulkLoader], so that they are loaded only once. */
+    private val bulkLoads: ConcurrentMap<K, CompletableDeferred<V?>> = ConcurrentHashMap()
+    private val evictLock = Any()
+
+    init {
+        require(maxSize > 0) { "Cache size $maxSize must be positive" }
+    }
+
+    /** Number of keys that are currently cached. */
+    val size: Int
+        get() = entries.size
+
+    /**
+     * Get the value of [key]. If it is not cached, or it has expired, it is loaded with
+     * [loader].
+     * @return value or null if [key] has no value.
+     */
+    suspend fun get(key: K): V? {
+        bulkLoads[key]?.let { return awaitBulkLoad(key, it) }
+        return entry(key).get { it != null }.value
+    }
+
+    /** Whether [key] has a value. */
+    suspend fun contains(key: K): Boolean = get(key) != null
+
+    /**
+     * Get the values of all [keys]. Keys that are not cached or have expired are loaded with a
+     * single call to [bulkLoader], or with [loader] per key if no bulk loader was provided. Keys
+     * that are already being loaded by another call to [getAll] are not loaded again, this call
+     * waits for them instead.
+     * @return map with the keys that have a value.
+     */
+    suspend fun getAll(keys: Iterable<K>): Map<K, V> {
+        val result = HashMap<K, V>()
+        val missing = HashSet<K>()
+        for (key in keys) {
+            val entry = entries[key]
+            val contents = entry?.value?.getFromCache()
+            if (contents is CachedValue.CacheValue && !contents.isExpired()) {
+                entry?.touch()
+                contents.value?.let { result[key] = it }
+            } else {
+                missing += key
+            }
+        }
+        if (missing.isEmpty()) return result
+
+        val loadBulk = bulkLoader
+        if (loadBulk == null) {
+            missing.toList()
+                .forkJoin { key -> get(key)?.let { key to it } }
+                .forEach { pair -> pair?.let { (key, value) -> result[key] = value } }
+        } else {
+            val loading = HashMap<K, CompletableDeferred<V?>>()
+            val waiting = HashMap<K, CompletableDeferred<V?>>()
+            missing.forEach { key ->
+                val deferred = CompletableDeferred<V?>()
+                val existing = bulkLoads.putIfAbsent(key, deferred)
+                if (existing != null) {
+                    waiting[key] = existing
+                } else {
+                    loading[key] = deferred
+                }
+            }
+            if (loading.isNotEmpty()) {
+                result += bulkLoad(loadBulk, loading)
+            }
+            waiting.forEach { (key, deferred) ->
+                awaitBulkLoad(key, deferred)?.let { result[key] = it }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Load the keys of [loading] with [loadBulk], cache them and complete their deferred values.
+     * @return map with the keys that have a value.
+     */
+    private suspend fun bulkLoad(
+        loadBulk: suspend (Set<K>) -> Map<K, V>,
+        loading: Map<K, CompletableDeferred<V?>>,
+    ): Map<K, V> {
+        val result = HashMap<K, V>()
+        try {
+            val loaded = loadBulk(loading.keys)
+            loading.forEach { (key, deferred) ->
+                val value = loaded[key]
+                entry(key).set(value)
+                bulkLoads.remove(key, deferred)
+                deferred.complete(value)
+                value?.let { result[key] = it }
+            }
+        } catch (ex: Exception) {
+            if (ex !is CancellationException) {
+                loading.forEach { (key, deferred) ->
+                    bulkLoads.remove(key, deferred)
+                    deferred.completeExceptionally(ex)
+                }
+            }
+            throw ex
+        } finally {
+            // Waiting coroutines load the keys themselves if this coroutine was cancelled.
+            loading.forEach { (key, deferred) ->
+                bulkLoads.remove(key, deferred)
+                deferred.cancel()
+            }
+        }
+        return result
+    }
+
+    /**
+     * Wait for a bulk load of another coroutine. If that coroutine was cancelled, the key is
+     * loaded with [get] instead. Failures of the bulk load are rethrown.
+     */
+    private suspend fun awaitBulkLoad(key: K, deferred: CompletableDeferred<V?>): V? = try {
+        deferred.await()
+    } catch (ex: CancellationException) {
+        currentCoroutineContext().ensureActive()
+        get(key)
+    }
+
+    /** Remove [key] from cache, cancelling its background refresh. */
+    fun remove(key: K) {
+        entries.remove(key)?.value?.close()
+    }
+
+    /** Remove all keys from cache, cancelling their background refreshes. */
+    fun clear() {
+        val iter = entries.values.iterator()
+        while (iter.hasNext()) {
+            val entry = iter.next()
+            iter.remove()
+            entry.value.close()
+        }
+    }
+
+    private fun CachedValue.CacheValue<V?>.isExpired(): Boolean = if (value != null) {
+        isExpired(cacheConfig.refreshDuration)
+    } else {
+        isExpired(cacheConfig.retryDuration)
+    }
+
+    private fun entry(key: K): CachedValue<V?> {
+        entries[key]?.let {
+            it.touch()
+            return it.value
+        }
+        val newEntry = Entry(CachedValue(cacheConfig) { loader(key) })
+        val entry = entries.putIfAbsent(key, newEntry)
+        return if (entry != null) {
+            entry.touch()
+            entry.value
+        } else {
+            evictIfNeeded()
+            newEntry.value
+        }
+    }
+
+    /** Remove the least recently used entries if there are more than [maxSize]. */
+    private fun evictIfNeeded() {
+        if (entries.size <= maxSize) return
+        synchronized(evictLock) {
+            val numberEvicted = entries.evictLeastRecentlyUsed(entries.size - maxSize) { it.lastAccess }
+            if (numberEvicted > 0) {
+                cacheConfig.listener?.onEviction(numberEvicted)
+            }
+        }
+    }
+
+    private class Entry<V>(val value: CachedValue<V?>) {
+        @Volatile
+        var lastAccess: Long = System.nanoTime()
+
+        fun touch() {
+            lastAccess = System.nanoTime()
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import org.slf4j.LoggerFactory
+
+/**
+ * Value that is kept up to date by a single coroutine in [scope], instead of being computed
+ * when it is requested. The value is computed by [supplier] right away, and then every
+ * [CacheConfig.refreshDuration]. If computing it fails, it is retried after
+ * [CacheConfig.retryDuration], while the previous value is kept.
+ *
+ * Readers get the latest value from [value] or [flow] without suspending, and subscribers of
+ * [flow] receive each new value.
+ */
+class RefreshingValue<T : Any>(
+    scope: CoroutineScope,
+    private val config: CacheConfig = CacheConfig(),
+    private val supplier: suspend () -> T,
+) {
+    private val contents = MutableStateFlow<CachedValue.CacheContents<T>?>(null)
+    private val latestValue = MutableStateFlow<T?>(null)
+    private val refreshRequests = Channel<Unit>(Channel.CONFLATED)
+
+    /** Latest value, or null if it has not been computed yet. */
+    val flow: StateFlow<T?> = latestValue.asStateFlow()
+
+    /** Latest value, or null if it has not been computed yet. */
+    val value: T?
+        get() = latestValue.value
+
+    /** Job that refreshes the value. Cancel it to stop refreshing. */
+    val job: Job = scope.launch { refreshLoop() }
+
+    /**
+     * Get the latest value. If it has not been computed yet, this waits for the first
+     * computation to finish.
+     * @throws Exception if the value has not been computed successfully yet, the exception of
+     *         the last computation.
+     */
+    suspend fun get(): T {
+        value?.let { return it }
+        return contents.filterNotNull().first().getOrThrow()
+    }
+
+    /** Refresh the value now instead of waiting for the next scheduled refresh. */
+    fun requestRefresh() {
+        refreshRequests.trySend(Unit)
+    }
+
+    private suspend fun refreshLoop() {
+        while (true) {
+            val startTime = config.timeSource.markNow()
+            val nextRefresh = try {
+                val newValue = supplier()
+                config.listener?.onCompute(startTime.elapsedNow(), isSuccess = true, isConcurrent = false)
+                latestValue.value = newValue
+                contents.value = CachedValue.CacheValue(newValue)
+                config.refreshDuration
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Exception) {
+                config.listener?.onCompute(startTime.elapsedNow(), isSuccess = false, isConcurrent = false)
+                logger.warn("Failed to refresh value: {}", ex.toString())
+                if (contents.value !is CachedValue.CacheValue) {
+                    contents.value = CachedValue.CacheError(ex)
+                }
+                config.retryDuration
+            }
+            withTimeoutOrNull(nextRefresh) {
+                refreshRequests.receive()
+            }
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(RefreshingValue::class.java)
+    }
+}
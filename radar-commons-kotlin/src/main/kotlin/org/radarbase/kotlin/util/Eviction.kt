@@ -0,0 +1,47 @@
+package org.radarbase.kotlin.util
+
+import java.util.concurrent.ConcurrentMap
+
+/** Default number of entries that is sampled to estimate which entries to evict. */
+const val DEFAULT_EVICTION_SAMPLE_SIZE = 256
+
+/**
+ * Remove about [numberToEvict] entries that were least recently accessed, according to
+ * [lastAccess]. Eviction is approximate: the access time threshold is estimated from at most
+ * [sampleSize] entries, so that the whole map does not need to be sorted. Fewer entries may be
+ * evicted if the estimate is off or if entries are accessed concurrently. Callers should
+ * synchronize calls to this function, to avoid evicting twice as many entries.
+ * @return number of entries that were evicted.
+ */
+fun <K : Any, V : Any> ConcurrentMap<K, V>.evictLeastRecentlyUsed(
+    numberToEvict: Int,
+    sampleSize: Int = DEFAULT_EVICTION_SAMPLE_SIZE,
+    lastAccess: (V) -> Long,
+): Int {
+    val currentSize = size
+    if (numberToEvict <= 0 || currentSize == 0) return 0
+
+    // Take a snapshot of access times, since they may change while evicting.
+    val accessTimes = LongArray(minOf(currentSize, sampleSize))
+    var numberSampled = 0
+    val valueIter = values.iterator()
+    while (valueIter.hasNext() && numberSampled < accessTimes.size) {
+        accessTimes[numberSampled++] = lastAccess(valueIter.next())
+    }
+    if (numberSampled == 0) return 0
+    accessTimes.sort(0, numberSampled)
+
+    // Fraction of the sample that corresponds to the fraction of the map to evict, rounded up.
+    val thresholdIndex = (numberToEvict.toLong() * numberSampled + currentSize - 1) / currentSize - 1
+    val threshold = accessTimes[thresholdIndex.toInt().coerceIn(0, numberSampled - 1)]
+
+    var numberEvicted = 0
+    val iter = entries.iterator()
+    while (iter.hasNext() && numberEvicted < numberToEvict) {
+        val (key, value) = iter.next()
+        if (lastAccess(value) <= threshold && remove(key, value)) {
+            numberEvicted++
+        }
+    }
+    return numberEvicted
+}
@@ -1,51 +1,178 @@
 package org.radarbase.ktor.auth
 
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import org.slf4j.LoggerFactory
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
 
+/**
+ * Holder of the current token. If [lifetime] returns the lifetime of a token, the holder tracks
+ * when the token expires, and when it should be refreshed: after [refreshFraction] of its
+ * lifetime has passed. Time is measured with [timeSource].
+ */
 internal class AuthTokenHolder<T>(
-    private val loadTokens: suspend () -> T?,
+    private val loadTokens: suspend () -> T? = { null },
+    private val refreshFraction: Double = 1.0,
+    private val timeSource: TimeSource = TimeSource.Monotonic,
+    private val lifetime: (T) -> Duration? = { null },
 ) {
     private val refreshTokensDeferred = AtomicReference<CompletableDeferred<T?>?>(null)
     private val loadTokensDeferred = AtomicReference<CompletableDeferred<T?>?>(null)
+    private val isRefreshing = AtomicBoolean(false)
+
+    @Volatile
+    private var expiry: TokenExpiry? = null
+
+    /** Latest loaded or set token, or null if there is none yet. */
+    @Volatile
+    internal var currentToken: T? = null
+        private set
+
+    init {
+        require(refreshFraction > 0.0 && refreshFraction <= 1.0) { "Token refresh fraction $refreshFraction must be in range (0, 1]" }
+    }
+
+    /** Whether the current token has expired. */
+    internal val isExpired: Boolean
+        get() = expiry?.expiresAt?.hasPassedNow() == true
+
+    /** Whether the current token should be refreshed. */
+    internal val shouldRefresh: Boolean
+        get() = expiry?.refreshAt?.hasPassedNow() == true
 
     internal fun clearToken() {
         loadTokensDeferred.set(null)
         refreshTokensDeferred.set(null)
+        expiry = null
+        currentToken = null
     }
 
-    internal suspend fun loadToken(): T? {
+    /**
+     * Load the token with [loadTokens], once. If loading fails, the exception is rethrown to all
+     * waiting callers and the token is loaded again by the next call. Holders that are shared
+     * between providers are passed the [loadTokens] of the calling provider.
+     */
+    internal suspend fun loadToken(loadTokens: suspend () -> T? = this.loadTokens): T? {
         var deferred: CompletableDeferred<T?>?
+        var newValue: CompletableDeferred<T?>
         do {
             deferred = loadTokensDeferred.get()
-            val newValue = deferred ?: CompletableDeferred()
+            newValue = deferred ?: CompletableDeferred()
         } while (!loadTokensDeferred.compareAndSet(deferred, newValue))
 
         return if (deferred != null) {
             deferred.await()
         } else {
-            val newTokens = loadTokens()
-            loadTokensDeferred.get()!!.complete(newTokens)
-            newTokens
+            try {
+                newValue.completeWith {
+                    loadTokens().also { track(it) }
+                }
+            } catch (ex: Throwable) {
+                loadTokensDeferred.compareAndSet(newValue, null)
+                throw ex
+            }
         }
     }
 
+    /**
+     * Set the token to the result of [block]. Concurrent calls wait for the first call instead of
+     * running [block] again. If [block] fails, the exception is rethrown to all waiting callers.
+     */
     internal suspend fun setToken(block: suspend () -> T?): T? {
         var deferred: CompletableDeferred<T?>?
+        var newValue: CompletableDeferred<T?>
         do {
             deferred = refreshTokensDeferred.get()
-            val newValue = deferred ?: CompletableDeferred()
+            newValue = deferred ?: CompletableDeferred()
         } while (!refreshTokensDeferred.compareAndSet(deferred, newValue))
 
         val newToken = if (deferred == null) {
-            val newTokens = block()
-            refreshTokensDeferred.get()!!.complete(newTokens)
-            refreshTokensDeferred.set(null)
-            newTokens
+            try {
+                newValue.completeWith {
+                    block().also { track(it) }
+                }
+            } finally {
+                refreshTokensDeferred.compareAndSet(newValue, null)
+            }
         } else {
             deferred.await()
         }
         loadTokensDeferred.set(CompletableDeferred(newToken))
         return newToken
     }
+
+    /**
+     * Request a new token with [block] in [scope], while the current token stays in use. Only one
+     * refresh runs at a time. If no new token is obtained, the current token is kept and the
+     * refresh is retried later. If [scope] is cancelled before the refresh completes, the next
+     * call starts a new refresh.
+     */
+    internal fun refreshInBackground(scope: CoroutineScope, block: suspend () -> T?) {
+        if (!isRefreshing.compareAndSet(false, true)) return
+        val job = scope.launch {
+            try {
+                val newToken = block()
+                if (newToken != null) {
+                    setToken { newToken }
+                } else {
+                    postponeRefresh()
+                }
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Exception) {
+                logger.warn("Failed to refresh token in the background: {}", ex.toString())
+                postponeRefresh()
+            }
+        }
+        // also called if the job is cancelled before it started
+        job.invokeOnCompletion { isRefreshing.set(false) }
+    }
+
+    /** Complete this deferred value with the result of [block], or with its exception. */
+    private suspend fun CompletableDeferred<T?>.completeWith(block: suspend () -> T?): T? = try {
+        block().also { complete(it) }
+    } catch (ex: Throwable) {
+        completeExceptionally(ex)
+        throw ex
+    }
+
+    private fun track(token: T?) {
+        currentToken = token
+        val tokenLifetime = token?.let(lifetime)
+        expiry = if (tokenLifetime != null && tokenLifetime.isPositive()) {
+            val now = timeSource.markNow()
+            TokenExpiry(
+                refreshAt = now + tokenLifetime * refreshFraction,
+                expiresAt = now + tokenLifetime,
+            )
+        } else {
+            null
+        }
+    }
+
+    private fun postponeRefresh() {
+        val currentExpiry = expiry ?: return
+        expiry = TokenExpiry(
+            refreshAt = timeSource.markNow() + REFRESH_RETRY_DURATION,
+            expiresAt = currentExpiry.expiresAt,
+        )
+    }
+
+    private class TokenExpiry(
+        val refreshAt: TimeMark,
+        val expiresAt: TimeMark,
+    )
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(AuthTokenHolder::class.java)
+
+        private val REFRESH_RETRY_DURATION = 10.seconds
+    }
 }
@@ -0,0 +1,119 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.MessageDigest
+import java.time.Instant
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Token store that stores each token as a JSON file in [directory]. The file name is derived from
+ * the token URL, client ID, scope and audience of the [ClientCredentialsConfig], so all clients
+ * and processes using the same credentials share the same token. Files are readable only by
+ * their owner if the file system supports it. Failures to read or write tokens are logged and
+ * otherwise ignored, so that a new token is requested instead.
+ */
+class FileTokenStore(
+    private val directory: Path,
+    private val ioContext: CoroutineContext = Dispatchers.IO,
+) : OAuthTokenStore {
+    private val mutex = Mutex()
+
+    override suspend fun load(config: ClientCredentialsConfig): OAuth2AccessToken? {
+        val path = tokenPath(config)
+        val stored = withContext(ioContext) {
+            try {
+                if (!Files.exists(path)) return@withContext null
+                json.decodeFromString<StoredToken>(Files.readString(path))
+            } catch (ex: IOException) {
+                logger.warn("Failed to read token from {}: {}", path, ex.toString())
+                null
+            } catch (ex: SerializationException) {
+                logger.warn("Failed to parse token in {}: {}", path, ex.toString())
+                null
+            }
+        } ?: return null
+
+        if (stored.expiresAt == 0L) return stored.token
+        val remaining = stored.expiresAt - Instant.now().epochSecond
+        return if (remaining > 0) stored.token.copy(expiresIn = remaining) else null
+    }
+
+    override suspend fun store(config: ClientCredentialsConfig, token: OAuth2AccessToken) {
+        val expiresAt = if (token.expiresIn > 0) Instant.now().epochSecond + token.expiresIn else 0L
+        val contents = json.encodeToString(StoredToken(token, expiresAt))
+        val path = tokenPath(config)
+        mutex.withLock {
+            withContext(ioContext) {
+                try {
+                    Files.createDirectories(directory)
+                    val tmpPath = Files.createTempFile(directory, path.fileName.toString(), ".tmp")
+                    try {
+                        restrictPermissions(tmpPath)
+                        Files.writeString(tmpPath, contents)
+                        try {
+                            Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING)
+                        } catch (ex: AtomicMoveNotSupportedException) {
+                            Files.move(tmpPath, path, REPLACE_EXISTING)
+                        }
+                    } finally {
+                        Files.deleteIfExists(tmpPath)
+                    }
+                } catch (ex: IOException) {
+                    logger.warn("Failed to store token in {}: {}", path, ex.toString())
+                }
+            }
+        }
+    }
+
+    private fun tokenPath(config: ClientCredentialsConfig): Path =
+        directory.resolve("token-${config.storageKey()}.json")
+
+    @Serializable
+    internal data class StoredToken(
+        val token: OAuth2AccessToken,
+        /** Time in epoch seconds that the token expires, or 0 if unknown. */
+        @SerialName("expires_at") val expiresAt: Long,
+    )
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(FileTokenStore::class.java)
+
+        private val json = Json { ignoreUnknownKeys = true }
+
+        private fun restrictPermissions(path: Path) {
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"))
+            } catch (ex: UnsupportedOperationException) {
+                // not a POSIX file system
+            }
+        }
+
+        /** Key of the credentials that does not reveal the client secret. */
+        private fun ClientCredentialsConfig.storageKey(): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            listOf(tokenUrl, clientId, scope, audience).forEach { part ->
+                digest.update((part ?: "").toByteArray())
+                digest.update(0.toByte())
+            }
+            return digest.digest()
+                .take(16)
+                .joinToString("") { "%02x".format(it) }
+        }
+    }
+}
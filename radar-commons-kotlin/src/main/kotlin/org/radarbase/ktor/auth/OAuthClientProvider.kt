@@ -23,6 +23,8 @@ import io.ktor.util.KtorDsl
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import org.slf4j.LoggerFactory
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource
 
 private val logger = LoggerFactory.getLogger(Auth::class.java)
 
@@ -31,24 +33,62 @@ private val logger = LoggerFactory.getLogger(Auth::class.java)
  */
 fun Auth.clientCredentials(block: ClientCredentialsAuthConfig.() -> Unit) {
     with(ClientCredentialsAuthConfig().apply(block)) {
-        this@clientCredentials.providers.add(ClientCredentialsAuthProvider(_requestToken, _loadTokens, _sendWithoutRequest, realm))
+        this@clientCredentials.providers.add(
+            ClientCredentialsAuthProvider(
+                _requestToken,
+                _loadTokens,
+                _sendWithoutRequest,
+                realm,
+                refreshFraction,
+                sharedCredentials,
+                tokenClient,
+                timeSource,
+            ),
+        )
     }
 }
 
+/**
+ * Installs a provider that requests tokens with the client credentials grant of [authConfig].
+ * Credentials are only sent without waiting for an unauthorized response to [targetHost]. If
+ * [tokenStore] is set, a stored token is used before requesting a new one, and new tokens are
+ * stored in it. If [shareToken] is true, the token is shared with all other clients that use the
+ * same credentials and also set [shareToken], see [OAuthTokenRegistry]. Tokens are requested with
+ * [tokenClient] until the client that the provider is installed in is known, see
+ * [ClientCredentialsAuthConfig.tokenClient].
+ * @return flow of the latest token.
+ */
 fun Auth.clientCredentials(
     authConfig: ClientCredentialsConfig,
     targetHost: String? = null,
+    tokenStore: OAuthTokenStore? = null,
+    shareToken: Boolean = false,
+    tokenClient: HttpClient? = null,
 ): Flow<OAuth2AccessToken?> {
     requireNotNull(authConfig.clientId) { "Missing client ID" }
     requireNotNull(authConfig.clientSecret) { "Missing client secret" }
-    val flow = MutableStateFlow<OAuth2AccessToken?>(null)
+    val flow: MutableStateFlow<OAuth2AccessToken?> = if (shareToken) {
+        OAuthTokenRegistry.tokenFlow(authConfig)
+    } else {
+        MutableStateFlow(null)
+    }
 
     clientCredentials {
+        if (shareToken) {
+            sharedCredentials = authConfig
+        }
+        this.tokenClient = tokenClient
         if (targetHost != null) {
             sendWithoutRequest { request ->
                 request.url.host == targetHost
             }
         }
+        if (tokenStore != null) {
+            loadTokens {
+                tokenStore.load(authConfig)
+                    ?.also { flow.value = it }
+            }
+        }
         requestToken {
             val response = client.submitForm(
                 url = authConfig.tokenUrl,
@@ -69,6 +109,9 @@ fun Auth.clientCredentials(
             } else {
                 response.body<OAuth2AccessToken>()
             }
+            if (refreshTokenInfo != null) {
+                tokenStore?.store(authConfig, refreshTokenInfo)
+            }
             flow.value = refreshTokenInfo
             refreshTokenInfo
         }
@@ -102,6 +145,32 @@ class ClientCredentialsAuthConfig {
 
     var realm: String? = null
 
+    /**
+     * Fraction of the token lifetime after which a new token is requested in the background,
+     * so that requests do not fail with an expired token. If null, a new token is only requested
+     * after a request fails with [HttpStatusCode.Unauthorized].
+     */
+    var refreshFraction: Double? = DEFAULT_REFRESH_FRACTION
+
+    /**
+     * If set, the token is shared with all other providers with the same shared credentials
+     * and [refreshFraction], see [OAuthTokenRegistry]. Whichever provider needs the token first
+     * loads or requests it with its own callbacks.
+     */
+    var sharedCredentials: ClientCredentialsConfig? = null
+
+    /**
+     * Client to request tokens with, until the client that the provider is installed in is
+     * known from a response. It must be able to decode JSON responses. Without it, an expired or
+     * stored token is only refreshed after a request fails with [HttpStatusCode.Unauthorized].
+     * The client is owned by the caller, the provider does not close it, so it can be shared by
+     * all providers.
+     */
+    var tokenClient: HttpClient? = null
+
+    /** Source of time to determine when tokens should be refreshed and when they expire. */
+    var timeSource: TimeSource = TimeSource.Monotonic
+
     /**
      * Configures a callback that refreshes a token when the 401 status code is received.
      */
@@ -123,6 +192,10 @@ class ClientCredentialsAuthConfig {
     fun sendWithoutRequest(block: (HttpRequestBuilder) -> Boolean) {
         _sendWithoutRequest = block
     }
+
+    companion object {
+        const val DEFAULT_REFRESH_FRACTION = 0.8
+    }
 }
 
 /**
@@ -135,9 +208,13 @@ class ClientCredentialsAuthConfig {
  */
 class ClientCredentialsAuthProvider(
     private val requestToken: suspend RequestTokenParams.() -> OAuth2AccessToken?,
-    loadTokens: suspend () -> OAuth2AccessToken?,
+    private val loadTokens: suspend () -> OAuth2AccessToken?,
     private val sendWithoutRequestCallback: (HttpRequestBuilder) -> Boolean = { true },
     private val realm: String?,
+    refreshFraction: Double? = ClientCredentialsAuthConfig.DEFAULT_REFRESH_FRACTION,
+    sharedCredentials: ClientCredentialsConfig? = null,
+    private val tokenClient: HttpClient? = null,
+    timeSource: TimeSource = TimeSource.Monotonic,
 ) : AuthProvider {
 
     @Suppress("OverridingDeprecatedMember")
@@ -145,7 +222,15 @@ class ClientCredentialsAuthProvider(
     override val sendWithoutRequest: Boolean
         get() = error("Deprecated")
 
-    private val tokensHolder = AuthTokenHolder(loadTokens)
+    private val tokensHolder = if (sharedCredentials != null) {
+        OAuthTokenRegistry.holder(sharedCredentials, refreshFraction, timeSource)
+    } else {
+        createTokenHolder(loadTokens, refreshFraction, timeSource)
+    }
+
+    /** Client to request new tokens with, known after the first token was requested. */
+    @Volatile
+    private var client: HttpClient? = null
 
     override fun sendWithoutRequest(request: HttpRequestBuilder): Boolean = sendWithoutRequestCallback(request)
 
@@ -164,7 +249,20 @@ class ClientCredentialsAuthProvider(
      * Adds an authentication method headers and credentials.
      */
     override suspend fun addRequestHeaders(request: HttpRequestBuilder, authHeader: HttpAuthHeader?) {
-        val token = tokensHolder.loadToken() ?: return
+        if (tokensHolder.isExpired) {
+            currentClient()?.let { client ->
+                tokensHolder.setToken {
+                    requestToken(RequestTokenParams(client))
+                }
+            }
+        } else if (tokensHolder.shouldRefresh) {
+            currentClient()?.let { client ->
+                tokensHolder.refreshInBackground(client) {
+                    requestToken(RequestTokenParams(client))
+                }
+            }
+        }
+        val token = tokensHolder.loadToken(loadTokens) ?: return
 
         request.headers {
             if (contains(HttpHeaders.Authorization)) {
@@ -175,8 +273,20 @@ class ClientCredentialsAuthProvider(
     }
 
     override suspend fun refreshToken(response: HttpResponse): Boolean {
+        val client = response.call.client
+        this.client = client
+        val currentToken = tokensHolder.currentToken
+        val usedAuthorization = response.call.request.headers[HttpHeaders.Authorization]
+        if (
+            currentToken?.accessToken != null &&
+            usedAuthorization != null &&
+            usedAuthorization != "Bearer ${currentToken.accessToken}"
+        ) {
+            // another client already replaced the token that was rejected
+            return true
+        }
         val newToken = tokensHolder.setToken {
-            requestToken(RequestTokenParams(response.call.client))
+            requestToken(RequestTokenParams(client))
         }
         return newToken != null
     }
@@ -184,4 +294,18 @@ class ClientCredentialsAuthProvider(
     fun clearToken() {
         tokensHolder.clearToken()
     }
+
+    private fun currentClient(): HttpClient? = client ?: tokenClient
+}
+
+internal fun createTokenHolder(
+    loadTokens: suspend () -> OAuth2AccessToken?,
+    refreshFraction: Double?,
+    timeSource: TimeSource = TimeSource.Monotonic,
+): AuthTokenHolder<OAuth2AccessToken> = if (refreshFraction != null) {
+    AuthTokenHolder(loadTokens, refreshFraction, timeSource) { token ->
+        token.expiresIn.takeIf { it > 0 }?.seconds
+    }
+} else {
+    AuthTokenHolder(loadTokens, timeSource = timeSource)
 }
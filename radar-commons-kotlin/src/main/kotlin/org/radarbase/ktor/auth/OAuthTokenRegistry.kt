@@ -0,0 +1,91 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import kotlin.time.TimeSource
+
+/**
+ * Process-wide registry of OAuth tokens, keyed by client credentials. All
+ * [ClientCredentialsAuthProvider] instances with the same [ClientCredentialsAuthConfig.sharedCredentials]
+ * share the same token, so only one of them requests or refreshes it at a time, regardless of the
+ * number of HTTP clients. Tokens are only referenced weakly, so a shared token is removed once no
+ * provider uses it anymore.
+ */
+object OAuthTokenRegistry {
+    private val holders = WeakValueMap<HolderKey, AuthTokenHolder<OAuth2AccessToken>>()
+    private val flows = WeakValueMap<ClientCredentialsConfig, MutableStateFlow<OAuth2AccessToken?>>()
+
+    /**
+     * Get the token holder of [credentials]. If none is registered yet, it is created with
+     * [refreshFraction] and [timeSource]. The holder does not load tokens by itself, each provider
+     * passes its own loader to [AuthTokenHolder.loadToken].
+     */
+    internal fun holder(
+        credentials: ClientCredentialsConfig,
+        refreshFraction: Double?,
+        timeSource: TimeSource = TimeSource.Monotonic,
+    ): AuthTokenHolder<OAuth2AccessToken> = holders.getOrPut(HolderKey(credentials, refreshFraction)) {
+        createTokenHolder({ null }, refreshFraction, timeSource)
+    }
+
+    /** Flow of the latest token of [credentials]. */
+    internal fun tokenFlow(credentials: ClientCredentialsConfig): MutableStateFlow<OAuth2AccessToken?> =
+        flows.getOrPut(credentials) { MutableStateFlow(null) }
+
+    /**
+     * Remove all shared tokens. Providers that were already created keep using their current
+     * token.
+     */
+    fun clear() {
+        holders.clear()
+        flows.clear()
+    }
+
+    private data class HolderKey(
+        val credentials: ClientCredentialsConfig,
+        val refreshFraction: Double?,
+    )
+
+    /** Concurrent map that only references its values weakly. */
+    private class WeakValueMap<K : Any, V : Any> {
+        private val map: ConcurrentMap<K, ValueReference<K, V>> = ConcurrentHashMap()
+        private val queue = ReferenceQueue<V>()
+
+        /** Get the value of [key], or add the value of [create] if there is none. */
+        fun getOrPut(key: K, create: () -> V): V {
+            removeCollected()
+            var result: V? = null
+            map.compute(key) { _, reference ->
+                result = reference?.get()
+                if (result != null) {
+                    reference
+                } else {
+                    ValueReference(key, create().also { result = it }, queue)
+                }
+            }
+            return checkNotNull(result)
+        }
+
+        fun clear() {
+            map.clear()
+        }
+
+        /** Remove entries whose value was garbage collected. */
+        private fun removeCollected() {
+            while (true) {
+                @Suppress("UNCHECKED_CAST")
+                val reference = queue.poll() as ValueReference<K, V>? ?: return
+                map.remove(reference.key, reference)
+            }
+        }
+
+        private class ValueReference<K, V>(
+            val key: K,
+            value: V,
+            queue: ReferenceQueue<V>,
+        ) : WeakReference<V>(value, queue)
+    }
+}
@@ -0,0 +1,17 @@
+package org.radarbase.ktor.auth
+
+/**
+ * Storage of OAuth tokens, so that a token can be reused after a restart instead of requesting a
+ * new one. Tokens are stored per [ClientCredentialsConfig]. Implementations must be thread-safe.
+ */
+interface OAuthTokenStore {
+    /**
+     * Load the token stored for [config]. The [OAuth2AccessToken.expiresIn] of the result is the
+     * remaining lifetime of the token.
+     * @return stored token, or null if no token is stored or if it has expired.
+     */
+    suspend fun load(config: ClientCredentialsConfig): OAuth2AccessToken?
+
+    /** Store [token] for [config], replacing any previously stored token. */
+    suspend fun store(config: ClientCredentialsConfig, token: OAuth2AccessToken)
+}
@@ -1,9 +1,12 @@
 package org.radarbase.kotlin.coroutines
 
 import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.runTest
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.Matchers.equalTo
 import org.hamcrest.Matchers.`is`
@@ -14,7 +17,7 @@ import org.junit.jupiter.api.assertThrows
 import java.util.concurrent.atomic.AtomicInteger
 import kotlin.time.Duration.Companion.milliseconds
 
-@OptIn(DelicateCoroutinesApi::class)
+@OptIn(DelicateCoroutinesApi::class, ExperimentalCoroutinesApi::class)
 internal class CachedValueTest {
     private lateinit var config: CacheConfig
 
@@ -65,6 +68,71 @@ internal class CachedValueTest {
         }
     }
 
+    @Test
+    fun getStaleWhileRefreshing() = runTest {
+        val cache = CachedValue(
+            config.copy(
+                maxStaleDuration = 200.milliseconds,
+                refreshContext = backgroundScope.coroutineContext,
+                timeSource = testScheduler.timeSource,
+            ),
+        ) {
+            delay(30.milliseconds)
+            calls.incrementAndGet()
+        }
+        assertThat("Initial value should refresh", cache.get(), `is`(1))
+        delay(40.milliseconds)
+        assertThat("Stale value is returned while refreshing", cache.get(), `is`(1))
+        assertThat("Stale value is returned while refreshing", cache.get(), `is`(1))
+        delay(40.milliseconds)
+        assertThat("Refreshed value is returned", cache.get(), `is`(2))
+        assertThat("Only one refresh was started", calls.get(), `is`(2))
+        delay(200.milliseconds)
+        assertThat("Value older than maximum stale age is refreshed", cache.get(), `is`(3))
+    }
+
+    @Test
+    fun closeCancelsOwnRefresh() = runTest {
+        val cache = CachedValue(
+            config.copy(
+                maxStaleDuration = 200.milliseconds,
+                // no job, so the cached value owns its refreshes
+                refreshContext = StandardTestDispatcher(testScheduler),
+                timeSource = testScheduler.timeSource,
+            ),
+        ) {
+            delay(30.milliseconds)
+            calls.incrementAndGet()
+        }
+        assertThat("Initial value should refresh", cache.get(), `is`(1))
+        delay(40.milliseconds)
+        assertThat("Stale value is returned while refreshing", cache.get(), `is`(1))
+        cache.close()
+        delay(40.milliseconds)
+        assertThat("Background refresh was cancelled", calls.get(), `is`(1))
+        assertThat("Closed value is refreshed while waiting", cache.get(), `is`(2))
+    }
+
+    @Test
+    fun listener() = runTest {
+        val stats = CacheStats()
+        val cache = CachedValue(config.copy(listener = stats, timeSource = testScheduler.timeSource)) {
+            if (calls.incrementAndGet() == 2) throw IllegalStateException("failed")
+            calls.get()
+        }
+        cache.get()
+        cache.get()
+        delay(20.milliseconds)
+        assertThrows<IllegalStateException> { cache.get() }
+        assertThrows<IllegalStateException> { cache.get() }
+        val snapshot = stats.snapshot()
+        assertThat(snapshot.hits, `is`(1L))
+        assertThat(snapshot.misses, `is`(2L))
+        assertThat(snapshot.exceptionHits, `is`(1L))
+        assertThat(snapshot.computes, `is`(2L))
+        assertThat(snapshot.failedComputes, `is`(1L))
+    }
+
     @Test
     fun refresh() {
         val cache = CachedValue(config) { calls.incrementAndGet() }
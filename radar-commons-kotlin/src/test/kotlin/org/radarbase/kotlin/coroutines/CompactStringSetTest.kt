@@ -0,0 +1,34 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.junit.jupiter.api.Test
+
+internal class CompactStringSetTest {
+    @Test
+    fun contains() {
+        val values = (0 until 1000).map { "source-$it" } + listOf("", "ünïcödé", "source-1")
+        val set = CompactStringSet(values)
+        assertThat(set.size, `is`(1002))
+        values.forEach { assertThat("Contains $it", it in set, `is`(true)) }
+        (1000 until 2000).forEach { assertThat("Does not contain source-$it", "source-$it" in set, `is`(false)) }
+        assertThat("unicode" in set, `is`(false))
+    }
+
+    @Test
+    fun empty() {
+        val set = CompactStringSet(emptyList())
+        assertThat(set.isEmpty(), `is`(true))
+        assertThat("a" in set, `is`(false))
+    }
+
+    @Test
+    fun cachedStringSet() {
+        val cache = CachedStringSet { listOf("a", "b") }
+        runBlocking {
+            assertThat(cache.contains("a"), `is`(true))
+            assertThat(cache.contains("c"), `is`(false))
+        }
+    }
+}
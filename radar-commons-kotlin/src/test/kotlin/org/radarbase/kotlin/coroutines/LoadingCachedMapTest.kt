@@ -0,0 +1,91 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+
+@OptIn(ExperimentalCoroutinesApi::class)
+internal class LoadingCachedMapTest {
+    private val config = CacheConfig(
+        refreshDuration = 40.milliseconds,
+        retryDuration = 20.milliseconds,
+    )
+
+    @Test
+    fun getPerKey() = runTest {
+        val calls = AtomicInteger(0)
+        val cache = LoadingCachedMap<Int, String>(config.copy(timeSource = testScheduler.timeSource)) { key ->
+            calls.incrementAndGet()
+            delay(10.milliseconds)
+            if (key > 0) "v$key" else null
+        }
+        val values = (0 until 5).map { async { cache.get(1) } }.awaitAll()
+        assertThat("All contexts get the same value", values.toSet(), equalTo(setOf("v1")))
+        assertThat("Key is loaded once", calls.get(), `is`(1))
+        assertThat(cache.get(2), `is`("v2"))
+        assertThat(cache.get(-1), nullValue())
+        assertThat("Each key is loaded separately", calls.get(), `is`(3))
+        delay(50.milliseconds)
+        assertThat(cache.get(1), `is`("v1"))
+        assertThat("Expired key is loaded again", calls.get(), `is`(4))
+    }
+
+    @Test
+    fun getAllBulk() {
+        val bulkCalls = AtomicInteger(0)
+        val cache = LoadingCachedMap<Int, String>(
+            config,
+            bulkLoader = { keys ->
+                bulkCalls.incrementAndGet()
+                keys.filter { it > 0 }.associateWith { "v$it" }
+            },
+        ) { error("Single key loader should not be called") }
+        runBlocking {
+            assertThat(cache.getAll(listOf(-1, 1, 2)), equalTo(mapOf(1 to "v1", 2 to "v2")))
+            assertThat(cache.getAll(listOf(1, 2)), equalTo(mapOf(1 to "v1", 2 to "v2")))
+            assertThat("Cached keys are not loaded again", bulkCalls.get(), `is`(1))
+            assertThat(cache.get(2), `is`("v2"))
+        }
+    }
+
+    @Test
+    fun getAllBulkConcurrently() = runTest {
+        val bulkCalls = mutableListOf<Set<Int>>()
+        val cache = LoadingCachedMap<Int, String>(
+            config.copy(timeSource = testScheduler.timeSource),
+            bulkLoader = { keys ->
+                bulkCalls += keys
+                delay(10.milliseconds)
+                keys.associateWith { "v$it" }
+            },
+        ) { error("Single key loader should not be called") }
+        val first = async { cache.getAll(listOf(1, 2)) }
+        val second = async { cache.getAll(listOf(2, 3)) }
+        val single = async { cache.get(1) }
+        assertThat(first.await(), equalTo(mapOf(1 to "v1", 2 to "v2")))
+        assertThat(second.await(), equalTo(mapOf(2 to "v2", 3 to "v3")))
+        assertThat(single.await(), `is`("v1"))
+        assertThat("Keys that are being loaded are not loaded again", bulkCalls, equalTo(listOf(setOf(1, 2), setOf(3))))
+    }
+
+    @Test
+    fun maxSize() {
+        val cache = LoadingCachedMap<Int, String>(config, maxSize = 2) { "v$it" }
+        runBlocking {
+            cache.get(1)
+            cache.get(2)
+            cache.get(3)
+            assertThat(cache.size, `is`(2))
+        }
+    }
+}
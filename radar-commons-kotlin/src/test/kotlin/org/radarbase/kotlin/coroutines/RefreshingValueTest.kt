@@ -0,0 +1,52 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+@OptIn(ExperimentalCoroutinesApi::class)
+internal class RefreshingValueTest {
+    @Test
+    fun refresh() = runTest {
+        val calls = AtomicInteger(0)
+        val refreshing = RefreshingValue(
+            backgroundScope,
+            CacheConfig(
+                refreshDuration = 40.milliseconds,
+                retryDuration = 20.milliseconds,
+                timeSource = testScheduler.timeSource,
+            ),
+        ) { calls.incrementAndGet() }
+        assertThat("Value is computed right away", refreshing.get(), `is`(1))
+        assertThat(refreshing.value, `is`(1))
+        assertThat("Value is refreshed on schedule", refreshing.flow.filterNotNull().first { it >= 2 }, `is`(2))
+        assertThat("Refresh waits for the refresh duration", testScheduler.currentTime, `is`(40L))
+    }
+
+    @Test
+    fun requestRefresh() = runTest {
+        val calls = AtomicInteger(0)
+        val refreshing = RefreshingValue(
+            backgroundScope,
+            CacheConfig(
+                refreshDuration = 10.seconds,
+                retryDuration = 1.seconds,
+                timeSource = testScheduler.timeSource,
+            ),
+        ) { calls.incrementAndGet() }
+        assertThat(refreshing.value, nullValue())
+        assertThat(refreshing.get(), `is`(1))
+        refreshing.requestRefresh()
+        delay(10.milliseconds)
+        assertThat("Value is refreshed on request", refreshing.value, `is`(2))
+    }
+}
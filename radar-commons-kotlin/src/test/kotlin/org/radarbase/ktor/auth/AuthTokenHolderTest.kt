@@ -0,0 +1,49 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+internal class AuthTokenHolderTest {
+    private val token = OAuth2AccessToken(accessToken = "abc", expiresIn = 3600)
+
+    @Test
+    fun setTokenAfterFailure() = runBlocking {
+        val holder = createTokenHolder({ null }, refreshFraction = 0.8)
+        assertThrows<IllegalStateException> {
+            holder.setToken { throw IllegalStateException("failed") }
+        }
+        assertThat("Token can be set after a failure", holder.setToken { token }, `is`(token))
+        assertThat(holder.loadToken(), `is`(token))
+    }
+
+    @Test
+    fun loadTokenAfterFailure() = runBlocking {
+        var fail = true
+        val holder = createTokenHolder({ if (fail) throw IllegalStateException("failed") else token }, refreshFraction = 0.8)
+        assertThrows<IllegalStateException> { holder.loadToken() }
+        fail = false
+        assertThat("Token is loaded again after a failure", holder.loadToken(), `is`(token))
+    }
+
+    @Test
+    fun refreshInBackgroundAfterCancelledScope() = runBlocking {
+        val holder = createTokenHolder({ null }, refreshFraction = 0.8)
+        // an unconfined dispatcher completes the cancelled refresh before launch returns
+        val cancelledScope = CoroutineScope(Job().apply { cancel() } + Dispatchers.Unconfined)
+        holder.refreshInBackground(cancelledScope) { throw IllegalStateException("not called") }
+
+        val refreshed = CompletableDeferred<Unit>()
+        holder.refreshInBackground(this) {
+            refreshed.complete(Unit)
+            token
+        }
+        refreshed.await()
+    }
+}
@@ -0,0 +1,76 @@
+package org.radarbase.ktor.auth
+
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
+import io.ktor.client.engine.mock.respondError
+import io.ktor.client.plugins.auth.Auth
+import io.ktor.client.request.get
+import io.ktor.client.statement.HttpResponse
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.sameInstance
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+internal class ClientCredentialsAuthProviderTest {
+    @Test
+    fun refreshStoredTokenWithoutUnauthorized() = runTest {
+        val tokenClient = HttpClient(MockEngine { respondError(HttpStatusCode.NotFound) })
+        val tokenRequests = AtomicInteger(0)
+        val unauthorizedResponses = AtomicInteger(0)
+        val requestClient = AtomicReference<HttpClient>()
+        val httpClient = HttpClient(
+            MockEngine { request ->
+                if (request.headers[HttpHeaders.Authorization] == null) {
+                    unauthorizedResponses.incrementAndGet()
+                    respondError(HttpStatusCode.Unauthorized)
+                } else {
+                    respond("")
+                }
+            },
+        ) {
+            install(Auth) {
+                clientCredentials {
+                    refreshFraction = 0.01
+                    timeSource = testScheduler.timeSource
+                    loadTokens { OAuth2AccessToken(accessToken = "stored", expiresIn = 1) }
+                    this.tokenClient = tokenClient
+                    requestToken {
+                        requestClient.set(client)
+                        tokenRequests.incrementAndGet()
+                        OAuth2AccessToken(accessToken = "new", expiresIn = 3600)
+                    }
+                }
+            }
+        }
+
+        assertThat(httpClient.get("http://localhost/").authorization(), `is`("Bearer stored"))
+        // Refresh is due after 10 milliseconds of virtual time
+        delay(50.milliseconds)
+        // The refresh runs in the background of the HTTP client, so wait for it in real time
+        withContext(Dispatchers.Default) {
+            withTimeout(5.seconds) {
+                while (httpClient.get("http://localhost/").authorization() != "Bearer new") {
+                    delay(10.milliseconds)
+                }
+            }
+        }
+        assertThat("Token is refreshed once", tokenRequests.get(), `is`(1))
+        assertThat("Token is requested with the token client", requestClient.get(), sameInstance(tokenClient))
+        assertThat("Token is refreshed before it is rejected", unauthorizedResponses.get(), `is`(0))
+    }
+
+    private fun HttpResponse.authorization(): String? =
+        call.request.headers[HttpHeaders.Authorization]
+}
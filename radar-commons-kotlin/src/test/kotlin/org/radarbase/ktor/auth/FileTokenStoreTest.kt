@@ -0,0 +1,50 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.lessThanOrEqualTo
+import org.hamcrest.Matchers.notNullValue
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+
+internal class FileTokenStoreTest {
+    @TempDir
+    lateinit var directory: Path
+
+    private val config = ClientCredentialsConfig(
+        tokenUrl = "http://localhost/oauth/token",
+        clientId = "client",
+        clientSecret = "secret",
+    )
+
+    @Test
+    fun storeAndLoad() = runBlocking {
+        val store = FileTokenStore(directory)
+        assertThat(store.load(config), nullValue())
+        store.store(config, OAuth2AccessToken(accessToken = "abc", expiresIn = 3600))
+
+        val token = FileTokenStore(directory).load(config)
+        assertThat(token, notNullValue())
+        assertThat(token!!.accessToken, `is`("abc"))
+        assertThat(token.expiresIn, lessThanOrEqualTo(3600L))
+        assertThat(
+            "Token is stored per client",
+            store.load(config.copy(clientId = "other")),
+            nullValue(),
+        )
+    }
+
+    @Test
+    fun expiredToken() = runBlocking {
+        val store = FileTokenStore(directory)
+        store.store(config, OAuth2AccessToken(accessToken = "abc", expiresIn = -1))
+        assertThat("Token without expiry is kept", store.load(config)?.accessToken, `is`("abc"))
+
+        directory.resolve(directory.toFile().list()!!.single()).toFile()
+            .writeText("""{"token":{"access_token":"abc","expires_in":10},"expires_at":1}""")
+        assertThat("Expired token is not loaded", store.load(config), nullValue())
+    }
+}
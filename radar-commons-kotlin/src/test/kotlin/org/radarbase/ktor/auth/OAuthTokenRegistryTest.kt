@@ -0,0 +1,81 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.not
+import org.hamcrest.Matchers.sameInstance
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+
+internal class OAuthTokenRegistryTest {
+    private val config = ClientCredentialsConfig(
+        tokenUrl = "http://localhost/oauth/token",
+        clientId = "client",
+        clientSecret = "secret",
+    )
+
+    @AfterEach
+    fun tearDown() {
+        OAuthTokenRegistry.clear()
+    }
+
+    @Test
+    fun sharedHolder() {
+        val first = OAuthTokenRegistry.holder(config, 0.8)
+        assertThat(OAuthTokenRegistry.holder(config, 0.8), sameInstance(first))
+        assertThat(OAuthTokenRegistry.holder(config.copy(clientId = "other"), 0.8), not(sameInstance(first)))
+    }
+
+    @Test
+    fun singleFlightRefresh() = runTest {
+        val requests = AtomicInteger(0)
+        val tokens = (0 until 10)
+            .map {
+                async {
+                    OAuthTokenRegistry.holder(config, 0.8).setToken {
+                        delay(100)
+                        token(requests.incrementAndGet())
+                    }
+                }
+            }
+            .awaitAll()
+
+        assertThat(requests.get(), `is`(1))
+        assertThat(tokens.map { it?.accessToken }.toSet(), `is`(setOf("token1")))
+    }
+
+    @Test
+    fun loadWithCallbackOfProvider() = runTest {
+        val holder = OAuthTokenRegistry.holder(config, 0.8)
+        assertThat(holder.loadToken { token(2) }?.accessToken, `is`("token2"))
+        assertThat(
+            "Loaded token is shared",
+            OAuthTokenRegistry.holder(config, 0.8).loadToken { token(3) }?.accessToken,
+            `is`("token2"),
+        )
+    }
+
+    @Test
+    fun sharedExpiry() = runTest {
+        val holder = OAuthTokenRegistry.holder(config, 0.5, testScheduler.timeSource)
+        holder.setToken { OAuth2AccessToken(accessToken = "token", expiresIn = 1) }
+        assertThat(holder.shouldRefresh, `is`(false))
+        delay(600.milliseconds)
+        assertThat(
+            "Other providers share the refresh time",
+            OAuthTokenRegistry.holder(config, 0.5).shouldRefresh,
+            `is`(true),
+        )
+        assertThat(holder.isExpired, `is`(false))
+        delay(500.milliseconds)
+        assertThat(holder.isExpired, `is`(true))
+    }
+
+    private fun token(i: Int) = OAuth2AccessToken(accessToken = "token$i", expiresIn = 3600)
+}
@@ -59,10 +59,14 @@ dependencies {
     }
 
     implementation(platform("io.ktor:ktor-bom:${Versions.ktor}"))
+    implementation("io.ktor:ktor-client-content-negotiation:${Versions.ktor}")
     implementation("io.ktor:ktor-serialization-kotlinx-json:${Versions.ktor}")
+    implementation("io.ktor:ktor-server-cio:${Versions.ktor}")
+    implementation("io.ktor:ktor-server-content-negotiation:${Versions.ktor}")
 
     applicationRuntimeOnly("org.slf4j:slf4j-simple:${Versions.slf4j}")
 
     testImplementation("org.hamcrest:hamcrest:${Versions.hamcrest}")
     testImplementation("org.mockito:mockito-core:${Versions.mockito}")
+    testImplementation("io.ktor:ktor-server-test-host:${Versions.ktor}")
 }
@@ -16,8 +16,12 @@
 package org.radarbase.mock
 
 import com.opencsv.exceptions.CsvValidationException
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.cio.CIO
 import io.ktor.client.plugins.auth.Auth
+import io.ktor.client.plugins.contentnegotiation.ContentNegotiation
 import io.ktor.client.plugins.defaultRequest
+import io.ktor.serialization.kotlinx.json.json
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
@@ -25,10 +29,12 @@ import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
+import kotlinx.serialization.json.Json
 import org.apache.avro.SchemaValidationException
 import org.radarbase.config.ServerConfig
 import org.radarbase.config.YamlConfigLoader
 import org.radarbase.ktor.auth.ClientCredentialsConfig
+import org.radarbase.ktor.auth.FileTokenStore
 import org.radarbase.ktor.auth.clientCredentials
 import org.radarbase.mock.config.AuthConfig
 import org.radarbase.mock.config.BasicMockConfig
@@ -75,6 +81,18 @@ class MockProducer @JvmOverloads constructor(
     private val retriever: SchemaRetriever
     private val job: Job = SupervisorJob()
 
+    /** Client to request authentication tokens with, shared by all senders. */
+    private val tokenClient = HttpClient(CIO) {
+        install(ContentNegotiation) {
+            json(
+                Json {
+                    ignoreUnknownKeys = true
+                },
+            )
+        }
+        timeout(10.seconds)
+    }
+
     init {
         val numDevices = mockConfig.numberOfDevices
         val schemaRetrieverUrl = requireNotNull(mockConfig.schemaRegistry?.urlString) { "Missing schema retriever URL in config" }
@@ -139,12 +157,14 @@ class MockProducer @JvmOverloads constructor(
     ): List<KafkaSender> {
         val scope = CoroutineScope(job)
         val sharedState = ConnectionState(10.seconds, scope)
+        val tokenStore = authConfig?.tokenStoreDirectory?.let { FileTokenStore(Paths.get(it)) }
         return (0 until numDevices)
             .map {
                 restKafkaSender {
                     this.scope = scope
                     schemaRetriever = retriever
                     connectionState = sharedState
+                    prefetchSchemas = true
 
                     httpClient {
                         defaultRequest {
@@ -159,6 +179,9 @@ class MockProducer @JvmOverloads constructor(
                                         authConfig.clientSecret,
                                     ).copyWithEnv(),
                                     restProxy.host,
+                                    tokenStore,
+                                    shareToken = true,
+                                    tokenClient = tokenClient,
                                 )
                             }
                         }
@@ -199,6 +222,7 @@ class MockProducer @JvmOverloads constructor(
             cancel()
             join()
         }
+        tokenClient.close()
         for (device in devices) {
             device.checkException()
         }
@@ -0,0 +1,124 @@
+package org.radarbase.mock
+
+import io.ktor.http.HttpStatusCode
+import io.ktor.serialization.kotlinx.json.json
+import io.ktor.server.application.Application
+import io.ktor.server.application.ApplicationCall
+import io.ktor.server.application.call
+import io.ktor.server.application.install
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.plugins.contentnegotiation.ContentNegotiation
+import io.ktor.server.request.receive
+import io.ktor.server.response.respond
+import io.ktor.server.response.respondText
+import io.ktor.server.routing.get
+import io.ktor.server.routing.post
+import io.ktor.server.routing.routing
+import kotlinx.serialization.json.Json
+import org.apache.avro.Schema
+import org.apache.avro.SchemaParseException
+import org.radarbase.producer.rest.RestException
+import org.radarbase.producer.schema.EmbeddedSchemaRegistry
+import org.radarbase.producer.schema.ParsedSchemaMetadata
+import org.radarbase.producer.schema.SchemaMetadata
+import java.io.Closeable
+
+/**
+ * Local HTTP server that serves an [EmbeddedSchemaRegistry] with the REST API of the Confluent
+ * schema registry, for clients that can only connect to a schema registry over HTTP.
+ */
+class SchemaRegistryServer(
+    registry: EmbeddedSchemaRegistry,
+    port: Int = DEFAULT_PORT,
+    host: String = DEFAULT_HOST,
+) : Closeable {
+    private val server = embeddedServer(CIO, port = port, host = host) {
+        schemaRegistryModule(registry)
+    }
+
+    /** Start the server. If [wait] is true, this blocks until the server is stopped. */
+    fun start(wait: Boolean = false): SchemaRegistryServer {
+        server.start(wait)
+        return this
+    }
+
+    override fun close() {
+        server.stop(SHUTDOWN_GRACE_PERIOD_MILLIS, SHUTDOWN_TIMEOUT_MILLIS)
+    }
+
+    companion object {
+        const val DEFAULT_PORT = 8081
+        const val DEFAULT_HOST = "127.0.0.1"
+        private const val SHUTDOWN_GRACE_PERIOD_MILLIS = 1_000L
+        private const val SHUTDOWN_TIMEOUT_MILLIS = 5_000L
+
+        /** Install the schema registry routes of [registry] in this application. */
+        fun Application.schemaRegistryModule(registry: EmbeddedSchemaRegistry) {
+            install(ContentNegotiation) {
+                json(
+                    Json {
+                        ignoreUnknownKeys = true
+                    },
+                )
+            }
+            routing {
+                get("/schemas/ids/{id}") {
+                    val id = call.parameters["id"]?.toIntOrNull()
+                        ?: return@get call.respond(HttpStatusCode.NotFound)
+                    call.respondRegistry {
+                        SchemaMetadata(id = id, schema = registry.retrieveSchemaById(id).toString())
+                    }
+                }
+                get("/subjects/{subject}/versions/{version}") {
+                    val subject = call.parameters["subject"]!!
+                    val versionParameter = call.parameters["version"]!!
+                    val version = if (versionParameter == "latest") {
+                        -1
+                    } else {
+                        versionParameter.toIntOrNull()
+                            ?: return@get call.respond(HttpStatusCode.NotFound)
+                    }
+                    call.respondRegistry {
+                        registry.retrieveSchemaMetadata(subject, version).toSchemaMetadata()
+                    }
+                }
+                post("/subjects/{subject}/versions") {
+                    val subject = call.parameters["subject"]!!
+                    call.respondRegistry {
+                        val metadata = registry.addSchema(subject, call.receiveSchema())
+                        SchemaMetadata(id = metadata.id)
+                    }
+                }
+                post("/subjects/{subject}") {
+                    val subject = call.parameters["subject"]!!
+                    call.respondRegistry {
+                        registry.requestMetadata(subject, call.receiveSchema()).toSchemaMetadata()
+                    }
+                }
+            }
+        }
+
+        private suspend fun ApplicationCall.receiveSchema(): Schema {
+            val schema = receive<SchemaMetadata>().schema
+                ?: throw SchemaParseException("Missing schema")
+            return Schema.Parser().parse(schema)
+        }
+
+        private suspend fun ApplicationCall.respondRegistry(block: suspend () -> SchemaMetadata) {
+            try {
+                respond(block())
+            } catch (ex: RestException) {
+                respondText(ex.message ?: "", status = ex.status)
+            } catch (ex: SchemaParseException) {
+                respondText(ex.message ?: "", status = HttpStatusCode.UnprocessableEntity)
+            }
+        }
+
+        private fun ParsedSchemaMetadata.toSchemaMetadata() = SchemaMetadata(
+            id = id,
+            version = version,
+            schema = schema.toString(),
+        )
+    }
+}
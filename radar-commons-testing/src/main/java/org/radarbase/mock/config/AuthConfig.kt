@@ -12,6 +12,10 @@ class AuthConfig {
     @JsonProperty("token_url")
     var tokenUrl: String? = null
 
+    /** Directory to store tokens in, so they can be reused after a restart. */
+    @JsonProperty("token_store_directory")
+    var tokenStoreDirectory: String? = null
+
     /**
      * Fill in the client ID and client secret from environment variables. The variables are
      * `&lt;prefix&gt;_CLIENT_ID` and `&lt;prefix&gt;_CLIENT_SECRET`.
@@ -47,7 +51,8 @@ class AuthConfig {
         other as AuthConfig
         return clientId == other.clientId &&
             clientSecret == other.clientSecret &&
-            tokenUrl == other.tokenUrl
+            tokenUrl == other.tokenUrl &&
+            tokenStoreDirectory == other.tokenStoreDirectory
     }
 
     override fun hashCode(): Int = clientId.hashCode()
@@ -0,0 +1,37 @@
+package org.radarbase.mock
+
+import io.ktor.server.testing.testApplication
+import org.apache.avro.Schema
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.radarbase.mock.SchemaRegistryServer.Companion.schemaRegistryModule
+import org.radarbase.producer.rest.RestException
+import org.radarbase.producer.schema.EmbeddedSchemaRegistry
+import org.radarbase.producer.schema.ParsedSchemaMetadata
+import org.radarbase.producer.schema.SchemaRestClient
+
+class SchemaRegistryServerTest {
+    private val stringSchema = Schema.create(Schema.Type.STRING)
+
+    @Test
+    fun serveRegistry() = testApplication {
+        val registry = EmbeddedSchemaRegistry()
+        application {
+            schemaRegistryModule(registry)
+        }
+        val restClient = SchemaRestClient(client, "http://localhost/")
+
+        assertEquals(ParsedSchemaMetadata(1, null, stringSchema), restClient.addSchema("a-value", stringSchema))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), registry.retrieveSchemaMetadata("a-value", 1))
+
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), restClient.requestMetadata("a-value", stringSchema))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), restClient.retrieveSchemaMetadata("a-value", -1))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), restClient.retrieveSchemaMetadata("a-value", 1))
+        assertEquals(stringSchema, restClient.retrieveSchemaById(1))
+
+        assertThrows<RestException> { restClient.retrieveSchemaById(2) }
+        assertThrows<RestException> { restClient.retrieveSchemaMetadata("b-value", 1) }
+        assertThrows<RestException> { restClient.requestMetadata("a-value", Schema.create(Schema.Type.INT)) }
+    }
+}
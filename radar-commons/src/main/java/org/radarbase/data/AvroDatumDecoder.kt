@@ -21,6 +21,7 @@ import org.apache.avro.io.BinaryDecoder
 import org.apache.avro.io.DatumReader
 import org.apache.avro.io.Decoder
 import org.apache.avro.io.DecoderFactory
+import org.apache.avro.io.JsonDecoder
 import org.radarbase.data.AvroDecoder.AvroReader
 import java.io.ByteArrayInputStream
 import java.io.IOException
@@ -32,24 +33,52 @@ import java.io.IOException
  * [GenericData.createDatumReader].
  * @param binary true if the read data has Avro binary encoding, false if it has Avro JSON
  * encoding.
+ * @param config decoding options.
  */
-class AvroDatumDecoder(
+class AvroDatumDecoder @JvmOverloads constructor(
     private val genericData: GenericData,
     private val binary: Boolean,
+    private val config: Config = Config(),
 ) : AvroDecoder {
     private val decoderFactory: DecoderFactory = DecoderFactory.get()
 
+    override fun <T> reader(schema: Schema, clazz: Class<out T>): AvroDatumReader<T> =
+        reader(schema, schema, clazz)
+
+    /**
+     * Create a reader for data written with [writerSchema]. The schema resolution to
+     * [readerSchema] is computed once per reader.
+     */
     @Suppress("UNCHECKED_CAST")
-    override fun <T> reader(schema: Schema, clazz: Class<out T>): AvroReader<T> {
-        val reader = genericData.createDatumReader(schema) as DatumReader<T>
-        return AvroRecordReader(schema, reader)
+    @Throws(IOException::class)
+    fun <T> reader(writerSchema: Schema, readerSchema: Schema, clazz: Class<out T>): AvroDatumReader<T> {
+        val reader = if (config.useFastReader && binary) {
+            genericData.fastReaderBuilder.createDatumReader<T>(writerSchema, readerSchema)
+        } else {
+            genericData.createDatumReader(writerSchema, readerSchema) as DatumReader<T>
+        }
+        return AvroDatumReader(writerSchema, reader)
     }
 
-    private inner class AvroRecordReader<T>(
+    /**
+     * Decoding options.
+     * @param reuseInstance whether each reader should reuse the value it decoded last as the
+     *        instance to decode the next value into. Callers should then not retain decoded
+     *        values after the next decode call.
+     * @param useFastReader whether to use the Avro fast reader for binary data.
+     */
+    data class Config(
+        val reuseInstance: Boolean = false,
+        val useFastReader: Boolean = false,
+    )
+
+    /** Reader of a single schema. It is not thread-safe. */
+    inner class AvroDatumReader<T> internal constructor(
         private val schema: Schema,
         private val reader: DatumReader<T>,
     ) : AvroReader<T> {
         private var decoder: Decoder? = null
+        private var lastValue: T? = null
 
         @Throws(IOException::class)
         override fun decode(`object`: ByteArray): T {
@@ -58,6 +87,17 @@ class AvroDatumDecoder(
 
         @Throws(IOException::class)
         override fun decode(`object`: ByteArray, offset: Int): T {
+            return decode(`object`, offset, if (config.reuseInstance) lastValue else null)
+        }
+
+        /**
+         * Decode an object from bytes, reusing an existing instance if possible.
+         * @param object bytes to decode from
+         * @param offset start offset to decode from.
+         * @param reuse instance to reuse, or null if a new instance should be created.
+         */
+        @Throws(IOException::class)
+        fun decode(`object`: ByteArray, offset: Int, reuse: T?): T {
             decoder = if (binary) {
                 decoderFactory.binaryDecoder(
                     `object`,
@@ -66,12 +106,15 @@ class AvroDatumDecoder(
                     decoder as? BinaryDecoder,
                 )
             } else {
-                decoderFactory.jsonDecoder(
-                    schema,
-                    ByteArrayInputStream(`object`, offset, `object`.size - offset),
-                )
+                val input = ByteArrayInputStream(`object`, offset, `object`.size - offset)
+                (decoder as? JsonDecoder)?.configure(input)
+                    ?: decoderFactory.jsonDecoder(schema, input)
+            }
+            val result = reader.read(reuse, decoder)
+            if (config.reuseInstance) {
+                lastValue = result
             }
-            return reader.read(null, decoder)
+            return result
         }
     }
 }
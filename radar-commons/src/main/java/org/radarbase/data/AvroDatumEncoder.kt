@@ -19,11 +19,16 @@ import org.apache.avro.Schema
 import org.apache.avro.generic.GenericData
 import org.apache.avro.io.DatumWriter
 import org.apache.avro.io.EncoderFactory
+import org.apache.avro.specific.SpecificData
+import org.apache.avro.specific.SpecificDatumWriter
+import org.apache.avro.specific.SpecificRecord
 import org.radarbase.data.AvroEncoder.AvroWriter
 import java.io.IOException
 
 /**
  *  An AvroEncoder to encode known SpecificRecord classes.
+ *  SpecificRecord classes that were generated with custom coders are binary encoded with
+ *  those coders, by writing them with a [SpecificDatumWriter] that has custom coders enabled.
  *  @param binary whether to use binary encoding or JSON.
  */
 class AvroDatumEncoder(
@@ -32,10 +37,37 @@ class AvroDatumEncoder(
 ) : AvroEncoder {
     private val encoderFactory: EncoderFactory = EncoderFactory.get()
 
+    /**
+     * Copy of [genericData] with custom coders enabled, if it is a [SpecificData] instance.
+     * Records without generated custom coders are still written field by field.
+     */
+    private val customCoderData: SpecificData? = when {
+        genericData !is SpecificData -> null
+        genericData.useCustomCoders() -> genericData
+        else -> SpecificData(genericData.classLoader).apply {
+            setCustomCoders(true)
+            genericData.conversions.forEach { addLogicalTypeConversion(it) }
+        }
+    }
+
     @Suppress("UNCHECKED_CAST")
     @Throws(IOException::class)
     override fun <T : Any> writer(schema: Schema, clazz: Class<out T>, readerSchema: Schema): AvroWriter<T> {
-        val writer = genericData.createDatumWriter(schema) as DatumWriter<T>
+        val specificData = customCoderData
+        val writer = if (binary && specificData != null && specificData.writesSchema(clazz, schema)) {
+            SpecificDatumWriter<T>(schema, specificData)
+        } else {
+            genericData.createDatumWriter(schema) as DatumWriter<T>
+        }
         return AvroRecordWriter(encoderFactory, schema, writer, binary)
     }
+
+    companion object {
+        /**
+         * Whether [clazz] is a SpecificRecord class for given schema. Generated custom coders
+         * always write the schema of their class, so they can only be used if it matches.
+         */
+        private fun SpecificData.writesSchema(clazz: Class<*>, schema: Schema): Boolean =
+            SpecificRecord::class.java.isAssignableFrom(clazz) && getSchema(clazz) == schema
+    }
 }
@@ -38,25 +38,33 @@ class RemoteSchemaEncoder(
             val genericData: GenericData
             val classLoader = Thread.currentThread().contextClassLoader
             val useReaderSchema: Schema
+            val writerClass: Class<out Any>
             if (SpecificRecord::class.java.isAssignableFrom(clazz)) {
                 genericData = SpecificData(classLoader)
                 useReaderSchema = schema
+                writerClass = clazz
                 isGeneric = false
             } else {
                 genericData = GenericData(classLoader)
                 useReaderSchema = readerSchema
+                writerClass = Any::class.java
                 isGeneric = true
             }
             recordEncoder = AvroDatumEncoder(genericData, binary)
             mapper = AvroDataMapperFactory.createMapper(schema, useReaderSchema, null)
-            encoder = recordEncoder.writer(useReaderSchema, Any::class.java)
+            encoder = recordEncoder.writer(useReaderSchema, writerClass)
         }
 
         @Throws(IOException::class)
-        override fun encode(`object`: T): ByteArray = encoder.encode(
-            requireNotNull(mapper.convertAvro(`object`)) {
-                "Cannot map $`object` to Avro"
-            },
-        )
+        override fun encode(`object`: T): ByteArray = if (mapper === AvroDataMapperFactory.IDENTITY_MAPPER) {
+            // pass the original value so that SpecificRecord custom coders can be used
+            encoder.encode(`object`)
+        } else {
+            encoder.encode(
+                requireNotNull(mapper.convertAvro(`object`)) {
+                    "Cannot map $`object` to Avro"
+                },
+            )
+        }
     }
 }
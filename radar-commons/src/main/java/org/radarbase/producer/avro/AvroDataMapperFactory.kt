@@ -26,7 +26,7 @@ object AvroDataMapperFactory {
      */
     @Throws(SchemaValidationException::class)
     fun createMapper(from: Schema, to: Schema, defaultVal: Any?): AvroDataMapper {
-        if (from == to) {
+        if (from == to || hasSameLayout(from, to, HashSet())) {
             logger.debug("Using identity schema mapping from {} to {}", from, to)
             return IDENTITY_MAPPER
         }
@@ -161,14 +161,13 @@ object AvroDataMapperFactory {
                 GenericData.get().createFixed(null, value, to)
             }
         } else if (to.type == Schema.Type.STRING) {
-            val encoder = Base64Encoder
             if (from.type == Schema.Type.FIXED) {
-                AvroDataMapper { `object` ->
-                    encoder.encode(`object`.asAvroType<GenericData.Fixed>(from, to).bytes())
+                BytesToStringMapper { `object` ->
+                    `object`.asAvroType<GenericData.Fixed>(from, to).bytes()
                 }
             } else {
-                AvroDataMapper { `object` ->
-                    encoder.encode(`object`.asAvroType<ByteBuffer>(from, to).array())
+                BytesToStringMapper { `object` ->
+                    `object`.asAvroType<ByteBuffer>(from, to).array()
                 }
             }
         } else {
@@ -238,6 +237,7 @@ object AvroDataMapperFactory {
         }
     }
 
+    /** Parses a string to a number, or returns the default value if it is not a number. */
     private class StringToNumberMapper(
         private val defaultVal: Any?,
         private val mapping: (String) -> Number,
@@ -253,6 +253,13 @@ object AvroDataMapperFactory {
         }
     }
 
+    /** Maps bytes to a Base64 encoded string. */
+    private class BytesToStringMapper(
+        private val toBytes: (Any?) -> ByteArray,
+    ) : AvroDataMapper {
+        override fun convertAvro(`object`: Any?): Any = Base64Encoder.encode(toBytes(`object`))
+    }
+
     private val logger: Logger = LoggerFactory.getLogger(AvroDataMapperFactory::class.java)
     val IDENTITY_MAPPER: AvroDataMapper = object : AvroDataMapper {
         override fun convertAvro(`object`: Any?): Any? = `object`
@@ -299,8 +306,13 @@ object AvroDataMapperFactory {
             } else {
                 throw validationException(to, from, "Cannot map enum from non-string or enum type")
             }
+            val symbols: Map<String, GenericEnumSymbol<*>> = to.enumSymbols
+                .associateWith { GenericData.EnumSymbol(to, it) }
             if (containsAll) {
-                AvroDataMapper { obj -> GenericData.EnumSymbol(to, obj.toString()) }
+                AvroDataMapper { obj ->
+                    val value = obj.toString()
+                    symbols[value] ?: GenericData.EnumSymbol(to, value)
+                }
             } else {
                 var defaultString = defaultVal as? String
                 if (defaultString == null) {
@@ -314,14 +326,10 @@ object AvroDataMapperFactory {
                         )
                     }
                 }
-                val symbol: GenericEnumSymbol<*> = GenericData.EnumSymbol(to, defaultString)
+                val symbol: GenericEnumSymbol<*> = symbols[defaultString]
+                    ?: GenericData.EnumSymbol(to, defaultString)
                 AvroDataMapper { obj: Any? ->
-                    val value = obj.toString()
-                    if (to.hasEnumSymbol(value)) {
-                        GenericData.EnumSymbol(to, value)
-                    } else {
-                        symbol
-                    }
+                    symbols[obj.toString()] ?: symbol
                 }
             }
         } else if (from.type == Schema.Type.ENUM && to.type == Schema.Type.STRING) {
@@ -351,10 +359,10 @@ object AvroDataMapperFactory {
         return if (from.type == Schema.Type.STRING) {
             defaultVal ?: throw validationException(to, from, "Cannot map string to number without default value.")
             when (to.type) {
-                Schema.Type.INT -> StringToNumberMapper(defaultVal, Integer::valueOf)
-                Schema.Type.LONG -> StringToNumberMapper(defaultVal, String::toLong)
-                Schema.Type.DOUBLE -> StringToNumberMapper(defaultVal, String::toDouble)
-                Schema.Type.FLOAT -> StringToNumberMapper(defaultVal, String::toFloat)
+                Schema.Type.INT -> StringToNumberMapper(defaultVal) { it.toInt() }
+                Schema.Type.LONG -> StringToNumberMapper(defaultVal) { it.toLong() }
+                Schema.Type.DOUBLE -> StringToNumberMapper(defaultVal) { it.toDouble() }
+                Schema.Type.FLOAT -> StringToNumberMapper(defaultVal) { it.toFloat() }
                 else -> throw validationException(
                     to,
                     from,
@@ -365,7 +373,12 @@ object AvroDataMapperFactory {
             when (to.type) {
                 Schema.Type.INT -> AvroDataMapper { it.asAvroType<Number>(from, to).toInt() }
                 Schema.Type.LONG -> AvroDataMapper { it.asAvroType<Number>(from, to).toLong() }
-                Schema.Type.DOUBLE -> AvroDataMapper { it.toString().toDouble() }
+                Schema.Type.DOUBLE -> if (from.type == Schema.Type.FLOAT) {
+                    // keep the decimal representation of the float, rather than its binary value
+                    AvroDataMapper { it.asAvroType<Number>(from, to).toString().toDouble() }
+                } else {
+                    AvroDataMapper { it.asAvroType<Number>(from, to).toDouble() }
+                }
                 Schema.Type.FLOAT -> AvroDataMapper { it.asAvroType<Number>(from, to).toFloat() }
                 Schema.Type.STRING -> AvroDataMapper { it.toString() }
                 else -> throw validationException(
@@ -399,6 +412,59 @@ object AvroDataMapperFactory {
 
     private fun Schema.Type.isPrimitive(): Boolean = this in PRIMITIVE_TYPES
 
+    /**
+     * Whether data of schema [from] can be written with schema [to] without any conversion.
+     * This is the case if the parsing canonical forms of the schemas are equal, ignoring docs,
+     * aliases and default values. Named types are also allowed to differ in name or namespace,
+     * except when they are part of a union, because unions are resolved by full name.
+     * @param visited pairs of named schemas that are already being compared, to support recursive
+     *                schemas.
+     */
+    private fun hasSameLayout(
+        from: Schema,
+        to: Schema,
+        visited: MutableSet<Pair<Schema, Schema>>,
+    ): Boolean {
+        if (from === to) return true
+        if (from.type != to.type) return false
+
+        return when (from.type) {
+            Schema.Type.RECORD -> {
+                if (!visited.add(Pair(from, to))) return true
+                val fromFields = from.fields
+                val toFields = to.fields
+                fromFields.size == toFields.size &&
+                    fromFields.indices.all { i ->
+                        val fromField = fromFields[i]
+                        val toField = toFields[i]
+                        fromField.name() == toField.name() &&
+                            hasSameLayout(fromField.schema(), toField.schema(), visited)
+                    }
+            }
+            Schema.Type.ENUM -> from.enumSymbols == to.enumSymbols
+            Schema.Type.FIXED -> from.fixedSize == to.fixedSize
+            Schema.Type.ARRAY -> hasSameLayout(from.elementType, to.elementType, visited)
+            Schema.Type.MAP -> hasSameLayout(from.valueType, to.valueType, visited)
+            Schema.Type.UNION -> {
+                val fromTypes = from.types
+                val toTypes = to.types
+                fromTypes.size == toTypes.size &&
+                    fromTypes.indices.all { i ->
+                        val fromType = fromTypes[i]
+                        val toType = toTypes[i]
+                        (!fromType.isNamed() || fromType.fullName == toType.fullName) &&
+                            hasSameLayout(fromType, toType, visited)
+                    }
+            }
+            else -> true
+        }
+    }
+
+    private fun Schema.isNamed(): Boolean = when (type) {
+        Schema.Type.RECORD, Schema.Type.ENUM, Schema.Type.FIXED -> true
+        else -> false
+    }
+
     internal fun validationException(
         from: Schema,
         to: Schema,
@@ -40,6 +40,11 @@ class GzipContentEncoding private constructor() {
             is OutgoingContent.ProtocolUpgrade, is OutgoingContent.NoContent -> content
             is OutgoingContent.ReadChannelContent -> GzipReadChannel(content.readFrom(), content.contentType)
             is OutgoingContent.ByteArrayContent -> GzipReadChannel(ByteReadChannel(content.bytes()), content.contentType)
+            // Compress inside the replay buffer, so that compressed data is replayed.
+            is ReplayableWriteChannelContent -> ReplayableWriteChannelContent(
+                GzipWriteChannel(content.content, content.contentType),
+                content.maxBufferSize,
+            )
             is OutgoingContent.WriteChannelContent -> GzipWriteChannel(content, content.contentType)
         }
     }
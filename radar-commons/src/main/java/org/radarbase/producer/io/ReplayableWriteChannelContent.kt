@@ -0,0 +1,86 @@
+package org.radarbase.producer.io
+
+import io.ktor.http.ContentType
+import io.ktor.http.Headers
+import io.ktor.http.content.OutgoingContent
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.ByteWriteChannel
+import io.ktor.utils.io.close
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.io.ByteArrayOutputStream
+
+/**
+ * Content that captures the bytes written by [content] the first time it is written, and writes
+ * the captured bytes on later writes, for example when a request is sent again after
+ * authentication failed. This way, the content is not encoded again. If [content] writes more than
+ * [maxBufferSize] bytes, nothing is captured and [content] writes the data again instead.
+ */
+class ReplayableWriteChannelContent(
+    val content: WriteChannelContent,
+    val maxBufferSize: Int,
+) : OutgoingContent.WriteChannelContent() {
+    @Volatile
+    private var replay: CaptureBuffer? = null
+
+    @Volatile
+    private var isTooLarge = false
+
+    init {
+        require(maxBufferSize > 0) { "Replay buffer size $maxBufferSize must be positive" }
+    }
+
+    override val contentType: ContentType?
+        get() = content.contentType
+
+    override val headers: Headers
+        get() = content.headers
+
+    override suspend fun writeTo(channel: ByteWriteChannel) {
+        val currentReplay = replay
+        when {
+            currentReplay != null -> currentReplay.writeTo(channel)
+            isTooLarge -> content.writeTo(channel)
+            else -> writeAndCapture(channel)
+        }
+    }
+
+    private suspend fun writeAndCapture(channel: ByteWriteChannel) = coroutineScope {
+        val pipe = ByteChannel()
+        launch {
+            try {
+                content.writeTo(pipe)
+                pipe.close()
+            } catch (ex: Throwable) {
+                pipe.close(ex)
+                throw ex
+            }
+        }
+
+        var capture: CaptureBuffer? = CaptureBuffer()
+        val chunk = ByteArray(CHUNK_SIZE)
+        while (true) {
+            val numRead = pipe.readAvailable(chunk, 0, chunk.size)
+            if (numRead == -1) break
+            channel.writeFully(chunk, 0, numRead)
+            if (capture != null) {
+                if (capture.size() + numRead > maxBufferSize) {
+                    capture = null
+                    isTooLarge = true
+                } else {
+                    capture.write(chunk, 0, numRead)
+                }
+            }
+        }
+        replay = capture
+    }
+
+    /** Buffer that can write its contents without copying them. */
+    private class CaptureBuffer : ByteArrayOutputStream() {
+        suspend fun writeTo(channel: ByteWriteChannel) = channel.writeFully(buf, 0, count)
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 8192
+    }
+}
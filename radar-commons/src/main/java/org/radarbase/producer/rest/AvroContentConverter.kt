@@ -9,11 +9,21 @@ import io.ktor.utils.io.charsets.Charset
 import kotlinx.coroutines.async
 import kotlinx.coroutines.coroutineScope
 import org.radarbase.data.RecordData
+import org.radarbase.producer.io.ReplayableWriteChannelContent
 import org.radarbase.producer.schema.SchemaRetriever
 
+/**
+ * Converts record data to Avro request content.
+ * @param encodingChunkSize if set, binary encoded record data with more values than this size
+ *        are encoded in concurrent chunks. See [BinaryRecordContent].
+ * @param replayBufferSize if set, encoded content up to this number of bytes is kept, so that it
+ *        is not encoded again if the request is resent. See [ReplayableWriteChannelContent].
+ */
 class AvroContentConverter(
     private val schemaRetriever: SchemaRetriever,
     private val binary: Boolean,
+    private val encodingChunkSize: Int? = null,
+    private val replayBufferSize: Int? = null,
 ) : ContentConverter {
     override suspend fun serializeNullable(
         contentType: ContentType,
@@ -43,6 +53,7 @@ class AvroContentConverter(
                     records = value,
                     keySchemaMetadata = keySchema.await(),
                     valueSchemaMetadata = valueSchema.await(),
+                    encodingChunkSize = encodingChunkSize,
                 )
             } else {
                 JsonRecordContent(
@@ -51,7 +62,12 @@ class AvroContentConverter(
                     valueSchemaMetadata = valueSchema.await(),
                 )
             }
-            maker.createContent(contentType)
+            val content = maker.createContent(contentType)
+            if (replayBufferSize != null && content is OutgoingContent.WriteChannelContent) {
+                ReplayableWriteChannelContent(content, replayBufferSize)
+            } else {
+                content
+            }
         }
     }
 
@@ -2,6 +2,10 @@ package org.radarbase.producer.rest
 
 import io.ktor.http.ContentType
 import io.ktor.http.content.OutgoingContent
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
 import org.radarbase.data.RecordData
 import org.radarbase.data.RemoteSchemaEncoder
 import org.radarbase.producer.avro.AvroDataMapperFactory
@@ -10,18 +14,25 @@ import org.radarbase.producer.io.DirectBinaryEncoder
 import org.radarbase.producer.io.FunctionalWriteChannelContent
 import org.radarbase.producer.schema.ParsedSchemaMetadata
 import org.slf4j.LoggerFactory
+import kotlin.coroutines.CoroutineContext
 
+/**
+ * Binary encoded record content.
+ * @param encodingChunkSize if set, record data with more values than this size are encoded in
+ *        chunks of this size concurrently, in [encodingContext].
+ * @param encodingContext context to encode chunks in.
+ * @param encodingParallelism maximum number of chunks that are encoded concurrently.
+ */
 class BinaryRecordContent<V : Any>(
     private val records: RecordData<*, V>,
     keySchemaMetadata: ParsedSchemaMetadata,
-    valueSchemaMetadata: ParsedSchemaMetadata,
+    private val valueSchemaMetadata: ParsedSchemaMetadata,
+    private val encodingChunkSize: Int? = null,
+    private val encodingContext: CoroutineContext = Dispatchers.Default,
+    private val encodingParallelism: Int = Runtime.getRuntime().availableProcessors(),
 ) : AvroRecordContent {
-    private val valueEncoder = RemoteSchemaEncoder.SchemaEncoderWriter(
-        binary = true,
-        schema = records.topic.valueSchema,
-        clazz = records.topic.valueClass,
-        readerSchema = valueSchemaMetadata.schema,
-    )
+    private val valueEncoder = createValueEncoder()
+
     private val sourceId = records.sourceId
         ?: throw AvroDataMapperFactory.validationException(
             records.topic.keySchema,
@@ -36,6 +47,13 @@ class BinaryRecordContent<V : Any>(
         "missing key schema version"
     }
 
+    init {
+        require(encodingChunkSize == null || encodingChunkSize > 0) {
+            "Encoding chunk size must be positive"
+        }
+        require(encodingParallelism > 0) { "Encoding parallelism must be positive" }
+    }
+
     override fun createContent(contentType: ContentType): OutgoingContent =
         FunctionalWriteChannelContent(contentType) { channel ->
             DirectBinaryEncoder(channel).use {
@@ -43,6 +61,13 @@ class BinaryRecordContent<V : Any>(
             }
         }
 
+    private fun createValueEncoder() = RemoteSchemaEncoder.SchemaEncoderWriter(
+        binary = true,
+        schema = records.topic.valueSchema,
+        clazz = records.topic.valueClass,
+        readerSchema = valueSchemaMetadata.schema,
+    )
+
     private suspend fun BinaryEncoder.writeRecords() {
         startItem()
         writeInt(keySchemaVersion)
@@ -54,15 +79,56 @@ class BinaryRecordContent<V : Any>(
         writeIndex(0)
         writeString(sourceId)
         writeArrayStart()
-        setItemCount(records.size().toLong())
-        for (record in records) {
-            startItem()
-            writeBytes(valueEncoder.encode(record))
+        if (encodingChunkSize != null && records.size() > encodingChunkSize) {
+            writeChunkedRecords(encodingChunkSize)
+        } else {
+            setItemCount(records.size().toLong())
+            for (record in records) {
+                startItem()
+                writeBytes(valueEncoder.encode(record))
+            }
         }
         writeArrayEnd()
         flush()
     }
 
+    /**
+     * Encode records concurrently in chunks of [chunkSize], by at most [encodingParallelism]
+     * workers that each have their own encoder. Worker `i` encodes chunks `i`, `i + n`, and so on,
+     * and only starts encoding its next chunk when the previous one was taken by the writer, so
+     * at most one encoded chunk per worker waits to be written. Each chunk is written as a
+     * separate Avro array block, in the original record order, as soon as it is its turn.
+     */
+    private suspend fun BinaryEncoder.writeChunkedRecords(chunkSize: Int) = coroutineScope {
+        val chunks = records.chunked(chunkSize)
+        val numWorkers = minOf(encodingParallelism, chunks.size)
+        logger.debug(
+            "Encoding {} records in chunks of {} with {} workers",
+            records.size(),
+            chunkSize,
+            numWorkers,
+        )
+        val encodedChunks = List(numWorkers) { worker ->
+            Channel<List<ByteArray>>().also { channel ->
+                launch(encodingContext) {
+                    val chunkEncoder = createValueEncoder()
+                    for (i in worker until chunks.size step numWorkers) {
+                        channel.send(chunks[i].map { chunkEncoder.encode(it) })
+                    }
+                }
+            }
+        }
+
+        for (i in chunks.indices) {
+            val encodedRecords = encodedChunks[i % numWorkers].receive()
+            setItemCount(encodedRecords.size.toLong())
+            for (encodedRecord in encodedRecords) {
+                startItem()
+                writeBytes(encodedRecord)
+            }
+        }
+    }
+
     companion object {
         private val logger = LoggerFactory.getLogger(BinaryRecordContent::class.java)
     }
@@ -16,20 +16,22 @@
 package org.radarbase.producer.rest
 
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.channels.BufferOverflow.DROP_OLDEST
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableSharedFlow
-import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.distinctUntilChanged
-import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.flow.onSubscription
 import kotlinx.coroutines.flow.transformLatest
 import kotlinx.coroutines.plus
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.coroutines.EmptyCoroutineContext
 import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
+import kotlin.time.TimeSource
 
 /**
  * Current connection status of a KafkaSender. After a timeout occurs this will turn to
@@ -42,15 +44,24 @@ import kotlin.time.Duration
  *
  *
  * A connection state could be shared with multiple HTTP clients if they are talking to the same
- * server.
+ * server. Updating the state does not suspend: the state and the time it was last updated are
+ * stored in a single atomic value, and the timeout is only evaluated when the state is read.
+ * Coroutines are only used for subscribers of [state].
  *
  * @param timeout timeout after which the connected state will be reset to unknown.
+ * @param timeSource source of time to evaluate the timeout with.
  * @throws IllegalArgumentException if the timeout is not strictly positive.
  */
 class ConnectionState(
     private val timeout: Duration,
-    scope: CoroutineScope = CoroutineScope(EmptyCoroutineContext),
+    scope: CoroutineScope,
+    timeSource: TimeSource,
 ) {
+    constructor(
+        timeout: Duration,
+        scope: CoroutineScope = CoroutineScope(EmptyCoroutineContext),
+    ) : this(timeout, scope, TimeSource.Monotonic)
+
     /** State symbols of the connection.  */
     enum class State {
         CONNECTED, DISCONNECTED, UNKNOWN, UNAUTHORIZED
@@ -58,42 +69,121 @@ class ConnectionState(
 
     val scope = scope + Job()
 
-    private val mutableState = MutableSharedFlow<State>(
+    private val timeoutNanos = timeout.inWholeNanoseconds
+    private val start = timeSource.markNow()
+
+    /** State ordinal in the lowest bits, time of the update since [start] in the others. */
+    private val packedState = AtomicLong(pack(State.UNKNOWN, 0L))
+
+    /** Signals subscribers of [state] that the state changed. */
+    private val changes = MutableSharedFlow<Unit>(
         extraBufferCapacity = 1,
         onBufferOverflow = DROP_OLDEST,
     )
 
+    private val prober = AtomicReference<HealthProber?>(null)
+
+    init {
+        require(timeout.isPositive()) { "Timeout must be strictly positive" }
+    }
+
+    /** Current state. A connected state that was not updated within the timeout is unknown. */
+    val current: State
+        get() {
+            while (true) {
+                val packed = packedState.get()
+                val state = unpackState(packed)
+                if (state != State.CONNECTED || elapsedNanos() - unpackTime(packed) < timeoutNanos) {
+                    return state
+                }
+                if (packedState.compareAndSet(packed, pack(State.UNKNOWN, elapsedNanos()))) {
+                    changes.tryEmit(Unit)
+                    return State.UNKNOWN
+                }
+            }
+        }
+
+    /**
+     * Flow of states. The current state is emitted on subscription, followed by each change.
+     */
     @OptIn(ExperimentalCoroutinesApi::class)
-    val state: Flow<State> = mutableState
-        .transformLatest { state ->
+    val state: Flow<State> = changes
+        .onSubscription { emit(Unit) }
+        .transformLatest {
+            var state = current
             emit(state)
-            if (state == State.CONNECTED) {
-                delay(timeout)
-                emit(State.UNKNOWN)
+            while (state == State.CONNECTED) {
+                delay(remainingConnected())
+                state = current
+                emit(state)
             }
         }
         .distinctUntilChanged()
-        .shareIn(this.scope + Dispatchers.Unconfined, SharingStarted.Eagerly, replay = 1)
 
-    init {
-        mutableState.tryEmit(State.UNKNOWN)
+    /**
+     * Get the health prober of this connection state. All senders that share this connection
+     * state share the same prober, but each passes its own probe request to it.
+     */
+    fun healthProber(): HealthProber {
+        prober.get()?.let { return it }
+        val newProber = HealthProber(this)
+        return if (prober.compareAndSet(null, newProber)) newProber else prober.get()!!
     }
 
     /** For a sender to indicate that a connection attempt succeeded.  */
-    suspend fun didConnect() {
-        mutableState.emit(State.CONNECTED)
-    }
+    fun didConnect() = update(State.CONNECTED)
 
     /** For a sender to indicate that a connection attempt failed.  */
-    suspend fun didDisconnect() {
-        mutableState.emit(State.DISCONNECTED)
+    fun didDisconnect() = update(State.DISCONNECTED)
+
+    fun wasUnauthorized() = update(State.UNAUTHORIZED)
+
+    fun reset() = update(State.UNKNOWN)
+
+    /*
+     * Updating the state used to suspend. These bridges keep callers that were compiled against
+     * the suspending functions working.
+     */
+
+    @Deprecated("Updating the state no longer suspends", level = DeprecationLevel.HIDDEN)
+    @JvmName("didConnect")
+    suspend fun didConnectSuspending() = didConnect()
+
+    @Deprecated("Updating the state no longer suspends", level = DeprecationLevel.HIDDEN)
+    @JvmName("didDisconnect")
+    suspend fun didDisconnectSuspending() = didDisconnect()
+
+    @Deprecated("Updating the state no longer suspends", level = DeprecationLevel.HIDDEN)
+    @JvmName("wasUnauthorized")
+    suspend fun wasUnauthorizedSuspending() = wasUnauthorized()
+
+    @Deprecated("Updating the state no longer suspends", level = DeprecationLevel.HIDDEN)
+    @JvmName("reset")
+    suspend fun resetSuspending() = reset()
+
+    private fun update(state: State) {
+        val previous = packedState.getAndSet(pack(state, elapsedNanos()))
+        if (unpackState(previous) != state && changes.subscriptionCount.value > 0) {
+            changes.tryEmit(Unit)
+        }
     }
 
-    suspend fun wasUnauthorized() {
-        mutableState.emit(State.UNAUTHORIZED)
+    private fun remainingConnected(): Duration {
+        val remaining = timeoutNanos - (elapsedNanos() - unpackTime(packedState.get()))
+        return remaining.coerceAtLeast(1L).nanoseconds
     }
 
-    suspend fun reset() {
-        mutableState.emit(State.UNKNOWN)
+    private fun elapsedNanos(): Long = start.elapsedNow().inWholeNanoseconds
+
+    companion object {
+        private const val STATE_BITS = 2
+        private const val STATE_MASK = (1L shl STATE_BITS) - 1
+        private val states = State.values()
+
+        private fun pack(state: State, time: Long): Long = (time shl STATE_BITS) or state.ordinal.toLong()
+
+        private fun unpackState(packed: Long): State = states[(packed and STATE_MASK).toInt()]
+
+        private fun unpackTime(packed: Long): Long = packed ushr STATE_BITS
     }
 }
@@ -0,0 +1,114 @@
+package org.radarbase.producer.rest
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/** How [RestKafkaSender] chooses an endpoint when it is configured with multiple endpoints. */
+enum class EndpointSelection {
+    /** Send to the endpoint with the fewest requests in progress. */
+    LEAST_OUTSTANDING,
+
+    /**
+     * Send records with the same key, for example the same source, to the same endpoint,
+     * using rendezvous hashing. If an endpoint is ejected, only its keys move to other endpoints.
+     */
+    CONSISTENT_HASH,
+}
+
+/** REST proxy endpoint with its own connection state. */
+class Endpoint internal constructor(
+    /** Base URL without trailing slash. */
+    val baseUrl: String,
+    val connectionState: ConnectionState,
+) {
+    private val outstanding = AtomicInteger(0)
+    internal val isReintroducing = AtomicBoolean(false)
+    internal val hash: Int = mix(baseUrl.hashCode())
+
+    /** Number of requests in progress. */
+    val numOutstanding: Int
+        get() = outstanding.get()
+
+    /** Whether the endpoint should receive requests, i.e., it was not ejected after a failure. */
+    val isAvailable: Boolean
+        get() = connectionState.current != ConnectionState.State.DISCONNECTED
+
+    internal suspend fun <T> track(block: suspend () -> T): T {
+        outstanding.incrementAndGet()
+        try {
+            return block()
+        } finally {
+            outstanding.decrementAndGet()
+        }
+    }
+
+    override fun toString(): String = "Endpoint($baseUrl, ${connectionState.current})"
+}
+
+/**
+ * Pool of endpoints to select from. Endpoints that are disconnected are skipped, unless no
+ * endpoint is available at all.
+ */
+internal class EndpointPool(
+    val endpoints: List<Endpoint>,
+    private val selection: EndpointSelection,
+) {
+    private val offset = AtomicInteger(0)
+
+    init {
+        require(endpoints.isNotEmpty()) { "Missing endpoints" }
+    }
+
+    val isAvailable: Boolean
+        get() = endpoints.any { it.isAvailable }
+
+    /** Select an endpoint for a request with given [key]. */
+    fun select(key: Any?): Endpoint {
+        if (endpoints.size == 1) return endpoints[0]
+        val candidates = endpoints.filter { it.isAvailable }
+            .ifEmpty { endpoints }
+        return select(candidates, key)
+    }
+
+    /**
+     * Select an available endpoint for a request with given [key] that is not in [exclude], for
+     * example to retry a request that failed.
+     * @return selected endpoint or `null` if no other endpoint is available.
+     */
+    fun selectAvailable(key: Any?, exclude: Collection<Endpoint>): Endpoint? {
+        val candidates = endpoints.filter { it.isAvailable && it !in exclude }
+        return if (candidates.isEmpty()) null else select(candidates, key)
+    }
+
+    private fun select(candidates: List<Endpoint>, key: Any?): Endpoint = when (selection) {
+        EndpointSelection.LEAST_OUTSTANDING -> leastOutstanding(candidates)
+        EndpointSelection.CONSISTENT_HASH -> highestRandomWeight(candidates, key.hashCode())
+    }
+
+    private fun leastOutstanding(candidates: List<Endpoint>): Endpoint {
+        // rotate the start so that ties are spread over endpoints
+        val start = Math.floorMod(offset.getAndIncrement(), candidates.size)
+        var best = candidates[start]
+        for (i in 1 until candidates.size) {
+            val endpoint = candidates[(start + i) % candidates.size]
+            if (endpoint.numOutstanding < best.numOutstanding) {
+                best = endpoint
+            }
+        }
+        return best
+    }
+
+    private fun highestRandomWeight(candidates: List<Endpoint>, keyHash: Int): Endpoint =
+        candidates.maxBy { mix(it.hash xor keyHash) }
+}
+
+/** Finalization step of MurmurHash3, to spread hash codes over all bits. */
+private fun mix(value: Int): Int {
+    var h = value
+    h = h xor (h ushr 16)
+    h *= -0x7a143595
+    h = h xor (h ushr 13)
+    h *= -0x3d4d51cb
+    h = h xor (h ushr 16)
+    return h
+}
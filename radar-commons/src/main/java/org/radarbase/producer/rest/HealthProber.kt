@@ -0,0 +1,140 @@
+package org.radarbase.producer.rest
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.plus
+import org.slf4j.LoggerFactory
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Health checks of the server of a [ConnectionState], shared by all senders that use that
+ * connection state. Each sender passes its own probe request, concurrent probes are coalesced
+ * into a single request. While senders wait for the connection with [awaitConnected], the
+ * server is probed in the background, with an interval that doubles from [minInterval] up to
+ * [maxInterval] while it stays down. Waiting senders resume as soon as the connection state
+ * becomes connected, either by a probe or by a successful request of another sender.
+ *
+ * Probes run in a supervisor scope of the connection state, so a failing probe request only
+ * counts as a disconnected state and does not cancel other coroutines of the connection state.
+ *
+ * Get an instance with [ConnectionState.healthProber].
+ */
+class HealthProber internal constructor(
+    private val connectionState: ConnectionState,
+    private val minInterval: Duration = DEFAULT_MIN_INTERVAL,
+    private val maxInterval: Duration = DEFAULT_MAX_INTERVAL,
+) {
+    private val scope: CoroutineScope = connectionState.scope +
+        SupervisorJob(connectionState.scope.coroutineContext[Job])
+    private val inFlight = AtomicReference<Deferred<ConnectionState.State>?>(null)
+
+    /** Probe request of the sender that most recently started waiting. */
+    private val waitingRequest = AtomicReference<(suspend () -> ConnectionState.State)?>(null)
+    private val numWaiting = AtomicInteger(0)
+    private val isProbing = AtomicBoolean(false)
+
+    init {
+        require(minInterval.isPositive()) { "Minimum probe interval must be positive" }
+        require(maxInterval >= minInterval) { "Maximum probe interval must not be smaller than minimum interval" }
+    }
+
+    /**
+     * Probe the server now. If a probe is already running, this waits for its result instead of
+     * making another request. If [probeRequest] throws an exception, the connection state is
+     * set to disconnected.
+     * @param probeRequest makes a request to the server, updates the connection state and
+     *        returns the resulting state.
+     * @return connection state after the probe.
+     */
+    suspend fun probe(probeRequest: suspend () -> ConnectionState.State): ConnectionState.State {
+        while (true) {
+            val current = inFlight.get()
+            if (current != null) return current.await()
+            val deferred = scope.async(start = CoroutineStart.LAZY) {
+                probeSafely(probeRequest)
+            }
+            if (inFlight.compareAndSet(null, deferred)) {
+                deferred.invokeOnCompletion { inFlight.compareAndSet(deferred, null) }
+                return deferred.await()
+            } else {
+                deferred.cancel()
+            }
+        }
+    }
+
+    /**
+     * Wait until the connection state is connected, probing the server in the background while
+     * it is not. Unauthorized states are probed as well, since an authentication provider may
+     * have renewed its credentials in the meantime.
+     * @param probeRequest makes a request to the server, updates the connection state and
+     *        returns the resulting state. Background probes use the request of the sender that
+     *        most recently started waiting.
+     */
+    suspend fun awaitConnected(probeRequest: suspend () -> ConnectionState.State) {
+        if (connectionState.current == ConnectionState.State.CONNECTED) return
+        waitingRequest.set(probeRequest)
+        numWaiting.incrementAndGet()
+        try {
+            startProbing()
+            connectionState.state.first { it == ConnectionState.State.CONNECTED }
+        } finally {
+            numWaiting.decrementAndGet()
+        }
+    }
+
+    private fun startProbing() {
+        if (!isProbing.compareAndSet(false, true)) return
+        scope.launch {
+            try {
+                var interval = minInterval
+                while (numWaiting.get() > 0 && probeWaiting() != ConnectionState.State.CONNECTED) {
+                    delay(interval)
+                    interval = (interval * 2).coerceAtMost(maxInterval)
+                }
+            } finally {
+                isProbing.set(false)
+            }
+            // a sender may have started waiting while probing was stopping
+            if (numWaiting.get() > 0 && connectionState.current != ConnectionState.State.CONNECTED) {
+                startProbing()
+            }
+        }
+    }
+
+    private suspend fun probeWaiting(): ConnectionState.State {
+        val probeRequest = waitingRequest.get() ?: return connectionState.current
+        return probe(probeRequest)
+    }
+
+    private suspend fun probeSafely(
+        probeRequest: suspend () -> ConnectionState.State,
+    ): ConnectionState.State = try {
+        probeRequest()
+    } catch (ex: CancellationException) {
+        throw ex
+    } catch (ex: Exception) {
+        logger.warn("Failed to probe server: {}", ex.toString())
+        connectionState.didDisconnect()
+        ConnectionState.State.DISCONNECTED
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(HealthProber::class.java)
+
+        val DEFAULT_MIN_INTERVAL: Duration = 1.seconds
+        val DEFAULT_MAX_INTERVAL: Duration = 1.minutes
+    }
+}
@@ -38,12 +38,16 @@ import io.ktor.http.contentType
 import io.ktor.http.isSuccess
 import io.ktor.serialization.kotlinx.serialization
 import io.ktor.util.reflect.TypeInfo
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import kotlinx.serialization.json.Json
 import org.apache.avro.SchemaValidationException
@@ -88,11 +92,34 @@ class RestKafkaSender(config: Config) : KafkaSender {
     override val connectionState: Flow<ConnectionState.State>
         get() = _connectionState.state
 
-    private val baseUrl: String = requireNotNull(config.baseUrl).trimEnd('/')
+    private val baseUrls: List<String> = (listOfNotNull(config.baseUrl) + config.endpoints)
+        .map { it.trimEnd('/') }
+        .distinct()
+        .also { require(it.isNotEmpty()) { "Missing baseUrl from configuration" } }
+    private val baseUrl: String = baseUrls.first()
+    private val endpointSelection = config.endpointSelection
+    private val endpointPool = if (baseUrls.size == 1) {
+        EndpointPool(listOf(Endpoint(baseUrls[0], _connectionState)), endpointSelection)
+    } else {
+        val sharedStates = config.endpointConnectionStates.mapKeys { (url, _) -> url.trimEnd('/') }
+        EndpointPool(
+            baseUrls.map { url ->
+                Endpoint(url, sharedStates[url] ?: ConnectionState(DEFAULT_TIMEOUT, scope))
+            },
+            endpointSelection,
+        )
+    }
+
+    /** Endpoints that records are sent to. */
+    val endpoints: List<Endpoint>
+        get() = endpointPool.endpoints
     private val headers: Headers = config.headers.build()
     private val connectionTimeout: Duration = config.connectionTimeout
     private val contentEncoding = config.contentEncoding
     private val originalHttpClient = config.httpClient
+    private val encodingChunkSize = config.encodingChunkSize
+    private val replayBufferSize = config.replayBufferSize
+    private val prefetchSchemas = config.prefetchSchemas
 
     /**
      * Construct a RestSender.
@@ -110,11 +137,20 @@ class RestKafkaSender(config: Config) : KafkaSender {
         install(ContentNegotiation) {
             register(
                 KAFKA_REST_BINARY_ENCODING,
-                AvroContentConverter(schemaRetriever, binary = true),
+                AvroContentConverter(
+                    schemaRetriever,
+                    binary = true,
+                    encodingChunkSize = encodingChunkSize,
+                    replayBufferSize = replayBufferSize,
+                ),
             )
             register(
                 KAFKA_REST_JSON_ENCODING,
-                AvroContentConverter(schemaRetriever, binary = false),
+                AvroContentConverter(
+                    schemaRetriever,
+                    binary = false,
+                    replayBufferSize = replayBufferSize,
+                ),
             )
             serialization(
                 KAFKA_REST_ACCEPT,
@@ -144,73 +180,181 @@ class RestKafkaSender(config: Config) : KafkaSender {
         override val topic: AvroTopic<K, V>,
     ) : KafkaTopicSender<K, V> {
         override suspend fun send(records: RecordData<K, V>) = withContext(scope.coroutineContext) {
-            try {
-                val response: HttpResponse = restClient.post {
-                    url("topics/${topic.name}")
-                    setBody(records, recordDataTypeInfo)
+            var endpoint = endpointPool.select(records.key)
+            val failed = mutableListOf<Endpoint>()
+            while (true) {
+                try {
+                    send(endpoint, records)
+                    break
+                } catch (ex: IOException) {
+                    // only retry if the endpoint was ejected, not for request errors
+                    if (endpoint.isAvailable) throw ex
+                    failed += endpoint
+                    val next = endpointPool.selectAvailable(records.key, exclude = failed) ?: throw ex
+                    logger.warn(
+                        "Failed to send records to {}, retrying with {}: {}",
+                        endpoint.baseUrl,
+                        next.baseUrl,
+                        ex.toString(),
+                    )
+                    endpoint = next
+                }
+            }
+        }
+
+        private suspend fun send(endpoint: Endpoint, records: RecordData<K, V>) {
+            endpoint.track {
+                val response: HttpResponse = try {
+                    restClient.post {
+                        url("${endpoint.baseUrl}/topics/${topic.name}")
+                        setBody(records, recordDataTypeInfo)
+                    }
+                } catch (ex: IOException) {
+                    didDisconnect(endpoint)
+                    throw ex
                 }
                 if (response.status.isSuccess()) {
-                    _connectionState.didConnect()
+                    didConnect(endpoint)
                     logger.debug("Added message to topic {}", topic)
                 } else if (response.status == HttpStatusCode.Unauthorized || response.status == HttpStatusCode.Forbidden) {
-                    _connectionState.wasUnauthorized()
+                    wasUnauthorized(endpoint)
                     throw AuthenticationException("Request unauthorized")
                 } else if (response.status == HttpStatusCode.UnsupportedMediaType) {
                     throw UnsupportedMediaTypeException(
                         response.request.contentType() ?: response.request.content.contentType,
                         response.request.headers[HttpHeaders.ContentEncoding],
                     )
+                } else if (response.status.isServerError()) {
+                    didDisconnect(endpoint)
+                    throw response.toRestException()
                 } else {
-                    _connectionState.didDisconnect()
+                    // the request itself is invalid, so the endpoint is not to blame
                     throw response.toRestException()
                 }
-            } catch (ex: IOException) {
-                _connectionState.didDisconnect()
-                throw ex
             }
         }
     }
 
     @Throws(SchemaValidationException::class)
     override fun <K : Any, V : Any> sender(topic: AvroTopic<K, V>): KafkaTopicSender<K, V> {
+        if (prefetchSchemas) {
+            scope.launch {
+                schemaRetriever.prefetch(listOf(topic))
+            }
+        }
         return RestKafkaTopicSender(topic)
     }
 
     @Throws(AuthenticationException::class)
     override suspend fun resetConnection(): Boolean {
-        if (connectionState.first() === ConnectionState.State.CONNECTED) {
+        if (_connectionState.current === ConnectionState.State.CONNECTED) {
             return true
         }
-        val lastState = try {
-            val response = scope.async {
-                restClient.head {
-                    url("")
+        val states = if (endpoints.size == 1) {
+            listOf(endpoints[0].probe())
+        } else {
+            coroutineScope {
+                endpoints
+                    .map { async { it.probe() } }
+                    .awaitAll()
+            }
+        }
+        return when {
+            ConnectionState.State.CONNECTED in states -> true
+            ConnectionState.State.UNAUTHORIZED in states -> throw AuthenticationException("HEAD request unauthorized")
+            else -> false
+        }
+    }
+
+    /**
+     * Wait until the connection to the server is restored, probing it in the background
+     * together with other senders that share the same [ConnectionState]. With multiple
+     * endpoints, this waits until any endpoint is connected.
+     */
+    suspend fun awaitConnected() {
+        if (endpoints.size == 1) {
+            endpoints[0].awaitConnected()
+            return
+        }
+        coroutineScope {
+            val probes = endpoints.map { launch { it.awaitConnected() } }
+            _connectionState.state.first { it == ConnectionState.State.CONNECTED }
+            probes.forEach { it.cancel() }
+        }
+    }
+
+    private suspend fun Endpoint.probe(): ConnectionState.State =
+        connectionState.healthProber().probe { probeConnection(this) }
+
+    private suspend fun Endpoint.awaitConnected() =
+        connectionState.healthProber().awaitConnected { probeConnection(this) }
+
+    private suspend fun probeConnection(endpoint: Endpoint): ConnectionState.State = try {
+        val response = restClient.head {
+            url("${endpoint.baseUrl}/")
+        }
+        if (response.status.isSuccess()) {
+            didConnect(endpoint)
+            ConnectionState.State.CONNECTED
+        } else if (response.status == HttpStatusCode.Unauthorized) {
+            wasUnauthorized(endpoint)
+            ConnectionState.State.UNAUTHORIZED
+        } else {
+            didDisconnect(endpoint)
+            val bodyString = response.bodyAsText()
+            logger.warn(
+                "Failed to make heartbeat request to {} (HTTP status code {}): {}",
+                endpoint.baseUrl,
+                response.status,
+                bodyString,
+            )
+            ConnectionState.State.DISCONNECTED
+        }
+    } catch (ex: CancellationException) {
+        throw ex
+    } catch (ex: Exception) {
+        // no stack trace is needed
+        didDisconnect(endpoint)
+        logger.warn("Failed to make heartbeat request to {}: {}", endpoint.baseUrl, ex.toString())
+        ConnectionState.State.DISCONNECTED
+    }
+
+    private fun didConnect(endpoint: Endpoint) {
+        endpoint.connectionState.didConnect()
+        if (endpoint.connectionState !== _connectionState) {
+            _connectionState.didConnect()
+        }
+    }
+
+    private fun wasUnauthorized(endpoint: Endpoint) {
+        endpoint.connectionState.wasUnauthorized()
+        if (endpoint.connectionState !== _connectionState) {
+            _connectionState.wasUnauthorized()
+        }
+    }
+
+    /**
+     * Eject [endpoint] until a health probe succeeds. The overall connection state is only
+     * disconnected if no endpoints are left.
+     */
+    private fun didDisconnect(endpoint: Endpoint) {
+        endpoint.connectionState.didDisconnect()
+        if (endpoint.connectionState === _connectionState) return
+
+        if (endpoint.isReintroducing.compareAndSet(false, true)) {
+            logger.warn("Ejecting endpoint {} until it is reachable again", endpoint.baseUrl)
+            scope.launch {
+                try {
+                    endpoint.awaitConnected()
+                    logger.info("Reintroducing endpoint {}", endpoint.baseUrl)
+                } finally {
+                    endpoint.isReintroducing.set(false)
                 }
-            }.await()
-            if (response.status.isSuccess()) {
-                _connectionState.didConnect()
-                ConnectionState.State.CONNECTED
-            } else if (response.status == HttpStatusCode.Unauthorized) {
-                _connectionState.wasUnauthorized()
-                throw AuthenticationException("HEAD request unauthorized")
-            } else {
-                _connectionState.didDisconnect()
-                val bodyString = response.bodyAsText()
-                logger.warn(
-                    "Failed to make heartbeat request to {} (HTTP status code {}): {}",
-                    restClient,
-                    response.status,
-                    bodyString,
-                )
-                ConnectionState.State.DISCONNECTED
             }
-        } catch (ex: IOException) {
-            // no stack trace is needed
+        }
+        if (!endpointPool.isAvailable) {
             _connectionState.didDisconnect()
-            logger.warn("Failed to make heartbeat request to {}: {}", restClient, ex.toString())
-            ConnectionState.State.DISCONNECTED
         }
-        return lastState === ConnectionState.State.CONNECTED
     }
 
     fun config(config: Config.() -> Unit): RestKafkaSender {
@@ -222,6 +366,12 @@ class RestKafkaSender(config: Config) : KafkaSender {
     private fun toConfig() = Config().apply {
         scope = this@RestKafkaSender.scope
         baseUrl = this@RestKafkaSender.baseUrl
+        endpoints = this@RestKafkaSender.baseUrls.drop(1)
+        endpointSelection = this@RestKafkaSender.endpointSelection
+        connectionState = this@RestKafkaSender._connectionState
+        endpointConnectionStates = this@RestKafkaSender.endpoints
+            .filter { it.connectionState !== this@RestKafkaSender._connectionState }
+            .associate { it.baseUrl to it.connectionState }
         httpClient = this@RestKafkaSender.originalHttpClient
         schemaRetriever = this@RestKafkaSender.schemaRetriever
         headers = HeadersBuilder().apply { appendAll(this@RestKafkaSender.headers) }
@@ -229,12 +379,36 @@ class RestKafkaSender(config: Config) : KafkaSender {
         contentEncoding = this@RestKafkaSender.contentEncoding
         connectionTimeout = this@RestKafkaSender.connectionTimeout
         allowUnsafe = this@RestKafkaSender.allowUnsafe
+        encodingChunkSize = this@RestKafkaSender.encodingChunkSize
+        replayBufferSize = this@RestKafkaSender.replayBufferSize
+        prefetchSchemas = this@RestKafkaSender.prefetchSchemas
     }
 
     @RadarProducerDsl
     class Config {
         var scope: CoroutineScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
         var baseUrl: String? = null
+
+        /**
+         * Base URLs of additional REST proxies to send data to. Each endpoint has its own
+         * [ConnectionState], and endpoints that fail are not used until a health probe
+         * succeeds. A request that fails with a connection error, a server error or too many
+         * requests ejects the endpoint, and is retried on another available endpoint. Other
+         * client errors are not retried. The [connectionState] is then connected as long as any
+         * endpoint is.
+         */
+        var endpoints: List<String> = emptyList()
+
+        /**
+         * Connection states of the endpoints, by base URL, if there are multiple endpoints.
+         * Senders that send to the same endpoints should share these, so that an endpoint that
+         * is ejected by one sender is skipped by the others as well, and so that they probe it
+         * together. Endpoints without a connection state here get their own.
+         */
+        var endpointConnectionStates: Map<String, ConnectionState> = emptyMap()
+
+        /** How to choose an endpoint for each request, if there are multiple endpoints. */
+        var endpointSelection: EndpointSelection = EndpointSelection.LEAST_OUTSTANDING
         var schemaRetriever: SchemaRetriever? = null
         var connectionState: ConnectionState? = null
         var httpClient: HttpClient? = null
@@ -244,6 +418,25 @@ class RestKafkaSender(config: Config) : KafkaSender {
         var allowUnsafe: Boolean = false
         var contentType: ContentType = KAFKA_REST_JSON_ENCODING
 
+        /**
+         * If set, binary encoded record data with more values than this size are encoded in
+         * chunks of this size concurrently. This speeds up sending large batches.
+         */
+        var encodingChunkSize: Int? = null
+
+        /**
+         * If set, request bodies up to this number of bytes are kept after they are encoded and
+         * compressed, so that they can be sent again without encoding them again, for example
+         * after the authorization token was refreshed. Larger bodies are encoded again.
+         */
+        var replayBufferSize: Int? = null
+
+        /**
+         * Whether to fetch the key and value schema metadata of a topic in the background when
+         * its sender is created, so that the first send does not need to wait for it.
+         */
+        var prefetchSchemas: Boolean = false
+
         fun httpClient(config: HttpClientConfig<*>.() -> Unit = {}) {
             httpClient = httpClient?.config(config)
                 ?: HttpClient(CIO, config)
@@ -266,8 +459,14 @@ class RestKafkaSender(config: Config) : KafkaSender {
                 httpClient == other.httpClient &&
                 contentType == other.contentType &&
                 baseUrl == other.baseUrl &&
+                endpoints == other.endpoints &&
+                endpointConnectionStates == other.endpointConnectionStates &&
+                endpointSelection == other.endpointSelection &&
                 connectionTimeout == other.connectionTimeout &&
                 contentEncoding == other.contentEncoding &&
+                encodingChunkSize == other.encodingChunkSize &&
+                replayBufferSize == other.replayBufferSize &&
+                prefetchSchemas == other.prefetchSchemas &&
                 scope == other.scope
         }
         override fun hashCode(): Int = headers.hashCode()
@@ -275,6 +474,10 @@ class RestKafkaSender(config: Config) : KafkaSender {
 
     companion object {
         private val logger = LoggerFactory.getLogger(RestKafkaSender::class.java)
+
+        /** Whether the server failed, as opposed to the request being invalid. */
+        private fun HttpStatusCode.isServerError(): Boolean =
+            value >= 500 || this == HttpStatusCode.TooManyRequests
         private val recordDataTypeInfo: TypeInfo
 
         val DEFAULT_TIMEOUT: Duration = 20.seconds
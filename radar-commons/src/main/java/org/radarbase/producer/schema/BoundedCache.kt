@@ -0,0 +1,101 @@
+package org.radarbase.producer.schema
+
+import org.radarbase.kotlin.coroutines.CacheListener
+import org.radarbase.kotlin.util.evictLeastRecentlyUsed
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Concurrent cache that holds at most [maxSize] entries. When it grows beyond that size,
+ * approximately the least recently used entries are evicted. Each entry records its last access
+ * time, so lookups do not lock the cache. Eviction removes some headroom at once, so that it does
+ * not run on every insert. Keys are regular objects, so primitive keys are boxed; use
+ * [BoundedIntCache] for int keys.
+ *
+ * Evictions are reported to [listener]. Hits and misses are not, since a single lookup may use
+ * multiple caches; its owner reports them once per lookup instead.
+ */
+internal class BoundedCache<K : Any, V : Any>(
+    private val maxSize: Int,
+    private val listener: CacheListener? = null,
+) {
+    private val map: ConcurrentMap<K, Node<V>> = ConcurrentHashMap()
+    private val evictLock = Any()
+
+    init {
+        require(maxSize > 0) { "Cache size $maxSize must be positive" }
+    }
+
+    val size: Int
+        get() = map.size
+
+    /** Get the value of [key], or null if it is not cached. */
+    operator fun get(key: K): V? {
+        val node = map[key]
+        return if (node != null) {
+            node.lastAccess = System.nanoTime()
+            node.value
+        } else {
+            null
+        }
+    }
+
+    /** Get the value of [key], or add the value from [newValueGenerator] if it is not cached. */
+    fun computeIfAbsent(key: K, newValueGenerator: () -> V): V {
+        map[key]?.let {
+            it.lastAccess = System.nanoTime()
+            return it.value
+        }
+        val newNode = Node(newValueGenerator())
+        val node = map.putIfAbsent(key, newNode)
+        return if (node != null) {
+            node.value
+        } else {
+            evictIfNeeded()
+            newNode.value
+        }
+    }
+
+    operator fun set(key: K, value: V) {
+        if (map.put(key, Node(value)) == null) {
+            evictIfNeeded()
+        }
+    }
+
+    /** Remove all entries whose value matches [predicate]. */
+    suspend fun removeIf(predicate: suspend (V) -> Boolean) {
+        val iter = map.values.iterator()
+        while (iter.hasNext()) {
+            if (predicate(iter.next().value)) {
+                iter.remove()
+            }
+        }
+    }
+
+    fun clear() {
+        map.clear()
+    }
+
+    private fun evictIfNeeded() {
+        if (map.size <= maxSize) return
+        synchronized(evictLock) {
+            val excess = map.size - maxSize
+            if (excess <= 0) return
+            val numberToEvict = excess + maxSize / EVICTION_HEADROOM_DIVISOR
+            val numberEvicted = map.evictLeastRecentlyUsed(numberToEvict) { it.lastAccess }
+            if (numberEvicted > 0) {
+                listener?.onEviction(numberEvicted)
+            }
+        }
+    }
+
+    private class Node<V>(val value: V) {
+        @Volatile
+        var lastAccess: Long = System.nanoTime()
+    }
+
+    companion object {
+        /** Evict an additional tenth of the maximum size, to amortize eviction. */
+        private const val EVICTION_HEADROOM_DIVISOR = 10
+    }
+}
@@ -0,0 +1,198 @@
+package org.radarbase.producer.schema
+
+import org.radarbase.kotlin.coroutines.CacheListener
+import org.radarbase.kotlin.util.DEFAULT_EVICTION_SAMPLE_SIZE
+import java.util.concurrent.locks.StampedLock
+
+/**
+ * Concurrent cache with primitive int keys that holds at most [maxSize] entries. Like
+ * [BoundedCache], approximately the least recently used entries are evicted when it is full, but
+ * keys are not boxed. Entries are stored in an open-addressing table with linear probing that is
+ * allocated for [maxSize] entries up front. Lookups use an optimistic read, so they do not block
+ * each other, and updates take a write lock.
+ *
+ * Evictions are reported to [listener].
+ */
+internal class BoundedIntCache<V : Any>(
+    private val maxSize: Int,
+    private val listener: CacheListener? = null,
+) {
+    private val lock = StampedLock()
+    private val capacity: Int
+    private val mask: Int
+    private val keys: IntArray
+    private val values: Array<Any?>
+    private val lastAccess: LongArray
+    private var numberOfEntries = 0
+
+    init {
+        require(maxSize > 0) { "Cache size $maxSize must be positive" }
+        require(maxSize <= MAX_SIZE) { "Cache size $maxSize must be at most $MAX_SIZE" }
+        // keep the table at most half full, so probe sequences stay short
+        capacity = Integer.highestOneBit(maxSize * 2 - 1) shl 1
+        mask = capacity - 1
+        keys = IntArray(capacity)
+        values = arrayOfNulls(capacity)
+        lastAccess = LongArray(capacity)
+    }
+
+    val size: Int
+        get() {
+            val stamp = lock.readLock()
+            try {
+                return numberOfEntries
+            } finally {
+                lock.unlockRead(stamp)
+            }
+        }
+
+    /** Get the value of [key], or null if it is not cached. */
+    operator fun get(key: Int): V? {
+        var stamp = lock.tryOptimisticRead()
+        var index = indexOf(key)
+        var value = if (index >= 0) values[index] else null
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock()
+            try {
+                index = indexOf(key)
+                value = if (index >= 0) values[index] else null
+            } finally {
+                lock.unlockRead(stamp)
+            }
+        }
+        if (value == null) return null
+        // access times are approximate, a concurrent update may move the entry
+        lastAccess[index] = System.nanoTime()
+        @Suppress("UNCHECKED_CAST")
+        return value as V
+    }
+
+    operator fun set(key: Int, value: V) {
+        val stamp = lock.writeLock()
+        try {
+            val existing = indexOf(key)
+            if (existing >= 0) {
+                values[existing] = value
+                lastAccess[existing] = System.nanoTime()
+                return
+            }
+            if (numberOfEntries >= maxSize) {
+                evict(numberOfEntries - maxSize + 1 + maxSize / EVICTION_HEADROOM_DIVISOR)
+            }
+            var index = slot(key)
+            while (values[index] != null) {
+                index = (index + 1) and mask
+            }
+            keys[index] = key
+            lastAccess[index] = System.nanoTime()
+            values[index] = value
+            numberOfEntries++
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    fun clear() {
+        val stamp = lock.writeLock()
+        try {
+            values.fill(null)
+            numberOfEntries = 0
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+    }
+
+    /**
+     * Index of [key] in the table, or -1 if it is not present. The number of probes is bounded,
+     * so that an inconsistent optimistic read cannot loop forever.
+     */
+    private fun indexOf(key: Int): Int {
+        var index = slot(key)
+        repeat(capacity) {
+            if (values[index] == null) return -1
+            if (keys[index] == key) return index
+            index = (index + 1) and mask
+        }
+        return -1
+    }
+
+    private fun slot(key: Int): Int = mix(key) and mask
+
+    /**
+     * Remove about [numberToEvict] least recently used entries. The access time threshold is
+     * estimated from a sample of entries, like [org.radarbase.kotlin.util.evictLeastRecentlyUsed].
+     * Must be called with the write lock held.
+     */
+    private fun evict(numberToEvict: Int) {
+        val accessTimes = LongArray(minOf(numberOfEntries, DEFAULT_EVICTION_SAMPLE_SIZE))
+        var numberSampled = 0
+        var index = 0
+        while (index < capacity && numberSampled < accessTimes.size) {
+            if (values[index] != null) {
+                accessTimes[numberSampled++] = lastAccess[index]
+            }
+            index++
+        }
+        if (numberSampled == 0) return
+        accessTimes.sort(0, numberSampled)
+        val thresholdIndex = (numberToEvict.toLong() * numberSampled + numberOfEntries - 1) / numberOfEntries - 1
+        val threshold = accessTimes[thresholdIndex.toInt().coerceIn(0, numberSampled - 1)]
+
+        // collect keys first, since removing an entry moves other entries in the table
+        val evictedKeys = IntArray(numberToEvict)
+        var numberEvicted = 0
+        index = 0
+        while (index < capacity && numberEvicted < numberToEvict) {
+            if (values[index] != null && lastAccess[index] <= threshold) {
+                evictedKeys[numberEvicted++] = keys[index]
+            }
+            index++
+        }
+        for (i in 0 until numberEvicted) {
+            removeAt(indexOf(evictedKeys[i]))
+        }
+        if (numberEvicted > 0) {
+            listener?.onEviction(numberEvicted)
+        }
+    }
+
+    /**
+     * Remove the entry at [index], moving later entries of the same probe sequence back, so that
+     * no deletion markers are needed.
+     */
+    private fun removeAt(index: Int) {
+        var hole = index
+        var next = (index + 1) and mask
+        while (values[next] != null) {
+            val home = slot(keys[next])
+            // only move the entry if the hole is between its home slot and its current slot
+            if (((next - home) and mask) >= ((next - hole) and mask)) {
+                keys[hole] = keys[next]
+                lastAccess[hole] = lastAccess[next]
+                values[hole] = values[next]
+                hole = next
+            }
+            next = (next + 1) and mask
+        }
+        values[hole] = null
+        numberOfEntries--
+    }
+
+    companion object {
+        /** Evict an additional tenth of the maximum size, to amortize eviction. */
+        private const val EVICTION_HEADROOM_DIVISOR = 10
+
+        private const val MAX_SIZE = 1 shl 29
+
+        /** Finalization step of MurmurHash3, to spread sequential IDs over the table. */
+        private fun mix(value: Int): Int {
+            var h = value
+            h = h xor (h ushr 16)
+            h *= -0x7a143595
+            h = h xor (h ushr 13)
+            h *= -0x3d4d51cb
+            h = h xor (h ushr 16)
+            return h
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.radarbase.producer.schema
+
+import io.ktor.http.HttpStatusCode
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.apache.avro.Schema
+import org.radarbase.producer.rest.RestException
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.coroutines.CoroutineContext
+import kotlin.io.path.bufferedReader
+import kotlin.io.path.createDirectories
+import kotlin.io.path.exists
+
+/**
+ * In-process schema registry, for tests, benchmarks and deployments without a central schema
+ * registry. Like the Confluent schema registry, a schema has the same ID in all subjects, and
+ * versions are numbered per subject starting from 1. Missing schemas result in a
+ * [RestException] with status 404.
+ *
+ * If [directory] is set, registered schemas are appended to a JSON lines file in that directory
+ * and loaded again when the registry is constructed.
+ */
+class EmbeddedSchemaRegistry(
+    directory: Path? = null,
+    private val ioContext: CoroutineContext = Dispatchers.IO,
+) : SchemaRegistryClient {
+    private val file: Path? = directory?.resolve(REGISTRY_FILE_NAME)
+    private val schemasById: ConcurrentMap<Int, Schema> = ConcurrentHashMap()
+    private val idsBySchema: ConcurrentMap<Schema, Int> = ConcurrentHashMap()
+    private val subjects: ConcurrentMap<String, SubjectVersions> = ConcurrentHashMap()
+    private val mutex = Mutex()
+
+    /** Lock for appending to [file], so that registrations do not wait for file IO. */
+    private val fileMutex = Mutex()
+
+    /** Next schema ID, only modified when holding [mutex] or during construction. */
+    @Volatile
+    private var nextId = 1
+
+    init {
+        if (directory != null) {
+            directory.createDirectories()
+            load()
+        }
+    }
+
+    /** Names of all subjects with at least one schema. */
+    val subjectNames: Set<String>
+        get() = subjects.keys
+
+    override suspend fun retrieveSchemaMetadata(
+        subject: String,
+        version: Int,
+    ): ParsedSchemaMetadata {
+        val versions = subjects[subject]?.versions
+            ?: throw notFound("Subject $subject not found")
+        val metadata = if (version <= 0) {
+            versions.lastOrNull()
+        } else {
+            versions.getOrNull(version - 1)
+        }
+        return metadata ?: throw notFound("Version $version of subject $subject not found")
+    }
+
+    /**
+     * Register [schema] in [subject]. Schemas are compared in full, so schemas that differ only
+     * in defaults or logical types get different IDs. The schema is registered in memory before
+     * it is persisted, so if persisting fails, it stays registered until the registry is
+     * reconstructed.
+     * @throws IOException if the schema could not be persisted.
+     */
+    @Throws(IOException::class)
+    override suspend fun addSchema(
+        subject: String,
+        schema: Schema,
+    ): ParsedSchemaMetadata {
+        val metadata = mutex.withLock {
+            subjects[subject]?.bySchema?.get(schema)?.let { return it }
+
+            ParsedSchemaMetadata(
+                id = idsBySchema[schema] ?: nextId,
+                version = (subjects[subject]?.versions?.size ?: 0) + 1,
+                schema = schema,
+            ).also { index(subject, it) }
+        }
+        if (file != null) {
+            val line = json.encodeToString(RegistryRecord(subject, metadata))
+            fileMutex.withLock {
+                withContext(ioContext) {
+                    Files.newBufferedWriter(file, CREATE, APPEND).use {
+                        it.write(line)
+                        it.newLine()
+                    }
+                }
+            }
+        }
+        return metadata
+    }
+
+    override suspend fun requestMetadata(
+        subject: String,
+        schema: Schema,
+    ): ParsedSchemaMetadata = subjects[subject]
+        ?.bySchema
+        ?.get(schema)
+        ?: throw notFound("Schema not found in subject $subject")
+
+    override suspend fun retrieveSchemaById(id: Int): Schema = schemasById[id]
+        ?: throw notFound("Schema $id not found")
+
+    private fun index(subject: String, metadata: ParsedSchemaMetadata) {
+        schemasById.putIfAbsent(metadata.id, metadata.schema)
+        idsBySchema.putIfAbsent(metadata.schema, metadata.id)
+        subjects.computeIfAbsent(subject) { SubjectVersions() }.apply {
+            versions += metadata
+            bySchema.putIfAbsent(metadata.schema, metadata)
+        }
+        if (metadata.id >= nextId) {
+            nextId = metadata.id + 1
+        }
+    }
+
+    private fun load() {
+        val file = file ?: return
+        if (!file.exists()) return
+        val records = file.bufferedReader().useLines { lines ->
+            lines
+                .filter { it.isNotBlank() }
+                .map { line ->
+                    try {
+                        json.decodeFromString<RegistryRecord>(line)
+                    } catch (ex: IllegalArgumentException) {
+                        throw IOException("Invalid schema registry entry in $file", ex)
+                    }
+                }
+                .toList()
+        }
+        // Concurrent registrations may be persisted out of order.
+        records
+            .sortedBy { it.version }
+            .forEach { record ->
+                val schema = SchemaPool.parse(record.schema)
+                index(record.subject, ParsedSchemaMetadata(record.id, record.version, schema))
+            }
+        logger.debug("Loaded {} schemas from registry {}", records.size, file)
+    }
+
+    private class SubjectVersions {
+        val versions: MutableList<ParsedSchemaMetadata> = CopyOnWriteArrayList()
+        val bySchema: ConcurrentMap<Schema, ParsedSchemaMetadata> = ConcurrentHashMap()
+    }
+
+    /** Serialized form of a registered schema. */
+    @Serializable
+    internal data class RegistryRecord(
+        val subject: String,
+        val id: Int,
+        val version: Int,
+        val schema: String,
+    ) {
+        constructor(subject: String, metadata: ParsedSchemaMetadata) : this(
+            subject = subject,
+            id = metadata.id,
+            version = checkNotNull(metadata.version) { "Registered schema needs a version" },
+            schema = metadata.schema.toString(),
+        )
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(EmbeddedSchemaRegistry::class.java)
+
+        const val REGISTRY_FILE_NAME = "schema-registry.jsonl"
+
+        /** Base URL of schema retrievers created by [schemaRetriever]. */
+        private const val EMBEDDED_BASE_URL = "embedded:"
+
+        private val json = Json {
+            ignoreUnknownKeys = true
+        }
+
+        private fun notFound(message: String) = RestException(HttpStatusCode.NotFound, body = message)
+
+        /**
+         * Create a schema retriever that uses [registry] instead of a remote schema registry.
+         */
+        fun schemaRetriever(
+            registry: EmbeddedSchemaRegistry,
+            config: SchemaRetriever.Config.() -> Unit = {},
+        ): SchemaRetriever = SchemaRetriever.schemaRetriever(EMBEDDED_BASE_URL) {
+            registryClient = registry
+            config()
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.radarbase.producer.schema
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.apache.avro.Schema
+import org.apache.avro.SchemaParseException
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption.APPEND
+import java.nio.file.StandardOpenOption.CREATE
+import java.security.MessageDigest
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import kotlin.coroutines.CoroutineContext
+import kotlin.io.path.bufferedReader
+import kotlin.io.path.bufferedWriter
+import kotlin.io.path.createDirectories
+import kotlin.io.path.exists
+import kotlin.time.Duration
+import kotlin.time.toJavaDuration
+import kotlin.time.toKotlinDuration
+
+/**
+ * File-backed cache of schema metadata, so that schemas do not need to be fetched from the
+ * schema registry again after a restart. The cache is loaded when it is constructed, and
+ * fetched metadata is appended to a JSON lines file in [directory]. Entries older than
+ * [maxAge] are ignored when they are looked up. Use [registryDirectory] to get a separate
+ * directory per schema registry, since schema IDs are only unique within a registry.
+ */
+class SchemaFileCache(
+    directory: Path,
+    private val maxAge: Duration,
+    private val ioContext: CoroutineContext = Dispatchers.IO,
+) {
+    private val file: Path = directory.resolve(CACHE_FILE_NAME)
+    private val bySchema: ConcurrentMap<Pair<String, Schema>, Entry> = ConcurrentHashMap()
+    private val byVersion: ConcurrentMap<Pair<String, Int>, Entry> = ConcurrentHashMap()
+    private val byId: ConcurrentMap<Int, Entry> = ConcurrentHashMap()
+    private val writeMutex = Mutex()
+
+    /** Number of lines in the cache file. Only modified while holding [writeMutex]. */
+    @Volatile
+    private var numberOfLines = 0
+
+    init {
+        directory.createDirectories()
+        load()
+    }
+
+    /** Get cached metadata of [schema] in [subject], if present and not expired. */
+    fun get(subject: String, schema: Schema): CachedMetadata? =
+        bySchema.getValid(Pair(subject, schema))
+
+    /** Get cached metadata of [version] of [subject], if present and not expired. */
+    fun get(subject: String, version: Int): CachedMetadata? =
+        byVersion.getValid(Pair(subject, version))
+
+    /** Get a cached schema by [id], if present and not expired. */
+    fun getSchema(id: Int): Schema? = byId.getValid(id)?.metadata?.schema
+
+    /** Add metadata of [subject] to the cache and write it to file. */
+    @Throws(IOException::class)
+    suspend fun put(subject: String, metadata: ParsedSchemaMetadata) {
+        val entry = Entry(subject, metadata, Instant.now())
+        index(entry)
+        val line = json.encodeToString(entry.toRecord())
+        withContext(ioContext) {
+            writeMutex.withLock {
+                Files.newBufferedWriter(file, CREATE, APPEND).use {
+                    it.write(line)
+                    it.newLine()
+                }
+                numberOfLines++
+                if (numberOfLines > MAX_LINES_FACTOR * bySchema.size + MIN_COMPACT_LINES) {
+                    compact(validEntries())
+                }
+            }
+        }
+    }
+
+    private fun <K> ConcurrentMap<K, Entry>.getValid(key: K): CachedMetadata? {
+        val entry = get(key) ?: return null
+        return if (entry.isExpired()) {
+            remove(key, entry)
+            null
+        } else {
+            CachedMetadata(entry.metadata, entry.age())
+        }
+    }
+
+    /** All entries that have not expired, without duplicates. */
+    private fun validEntries(): List<Entry> = (bySchema.values.asSequence() + byVersion.values + byId.values)
+        .distinct()
+        .filterNot { it.isExpired() }
+        .toList()
+
+    private fun index(entry: Entry) {
+        val metadata = entry.metadata
+        bySchema[Pair(entry.subject, metadata.schema)] = entry
+        if (metadata.version != null) {
+            byVersion[Pair(entry.subject, metadata.version)] = entry
+        }
+        byId[metadata.id] = entry
+    }
+
+    private fun load() {
+        if (!file.exists()) return
+        var lineCount = 0
+        val entries = mutableListOf<Entry>()
+        try {
+            file.bufferedReader().useLines { lines ->
+                lines.forEach { line ->
+                    lineCount++
+                    val entry = parseEntry(line) ?: return@forEach
+                    if (!entry.isExpired()) {
+                        entries += entry
+                    }
+                }
+            }
+        } catch (ex: IOException) {
+            logger.warn("Failed to read schema cache {}: {}", file, ex.toString())
+            return
+        }
+        entries.forEach { index(it) }
+        logger.debug("Loaded {} schemas from cache {}", entries.size, file)
+
+        numberOfLines = lineCount
+        if (lineCount > MAX_LINES_FACTOR * bySchema.size + MIN_COMPACT_LINES) {
+            compact(validEntries())
+        }
+    }
+
+    private fun parseEntry(line: String): Entry? {
+        if (line.isBlank()) return null
+        return try {
+            val record = json.decodeFromString<SchemaCacheRecord>(line)
+            Entry(
+                subject = record.subject,
+                metadata = ParsedSchemaMetadata(
+                    id = record.id,
+                    version = record.version,
+                    schema = SchemaPool.parse(record.schema),
+                ),
+                fetchedAt = Instant.ofEpochMilli(record.fetchedAt),
+            )
+        } catch (ex: SerializationException) {
+            logger.warn("Skipping invalid schema cache entry in {}", file)
+            null
+        } catch (ex: SchemaParseException) {
+            logger.warn("Skipping invalid schema in cache {}", file)
+            null
+        }
+    }
+
+    /** Rewrite the cache file with only [entries], removing stale and duplicate lines. */
+    private fun compact(entries: List<Entry>) {
+        val tmpFile = Files.createTempFile(file.parent, CACHE_FILE_NAME, ".tmp")
+        try {
+            tmpFile.bufferedWriter().use { writer ->
+                entries.forEach {
+                    writer.write(json.encodeToString(it.toRecord()))
+                    writer.newLine()
+                }
+            }
+            Files.move(tmpFile, file, REPLACE_EXISTING, ATOMIC_MOVE)
+            numberOfLines = entries.size
+        } catch (ex: IOException) {
+            logger.warn("Failed to compact schema cache {}: {}", file, ex.toString())
+            Files.deleteIfExists(tmpFile)
+        }
+    }
+
+    private inner class Entry(
+        val subject: String,
+        val metadata: ParsedSchemaMetadata,
+        val fetchedAt: Instant,
+    ) {
+        fun isExpired(): Boolean = fetchedAt.plus(maxAge.toJavaDuration()).isBefore(Instant.now())
+
+        fun age(): Duration = java.time.Duration.between(fetchedAt, Instant.now())
+            .toKotlinDuration()
+            .coerceAtLeast(Duration.ZERO)
+
+        fun toRecord() = SchemaCacheRecord(
+            subject = subject,
+            id = metadata.id,
+            version = metadata.version,
+            schema = metadata.schema.toString(),
+            fetchedAt = fetchedAt.toEpochMilli(),
+        )
+    }
+
+    /**
+     * Cached schema metadata.
+     * @property age time since the metadata was fetched from the schema registry.
+     */
+    data class CachedMetadata(
+        val metadata: ParsedSchemaMetadata,
+        val age: Duration,
+    )
+
+    /** Serialized form of a schema cache entry. */
+    @Serializable
+    internal data class SchemaCacheRecord(
+        val subject: String,
+        val id: Int,
+        val version: Int? = null,
+        val schema: String,
+        val fetchedAt: Long,
+    )
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(SchemaFileCache::class.java)
+
+        const val CACHE_FILE_NAME = "schema-cache.jsonl"
+        private const val MIN_COMPACT_LINES = 100
+        private const val MAX_LINES_FACTOR = 2
+
+        /**
+         * Subdirectory of [directory] to cache the schemas of the registry at [baseUrl] in.
+         */
+        @JvmStatic
+        fun registryDirectory(directory: Path, baseUrl: String): Path {
+            val digest = MessageDigest.getInstance("SHA-256")
+                .digest(baseUrl.trimEnd('/').toByteArray())
+            val name = digest.take(8).joinToString("") { "%02x".format(it) }
+            return directory.resolve("registry-$name")
+        }
+
+        private val json = Json {
+            ignoreUnknownKeys = true
+        }
+    }
+}
@@ -16,7 +16,6 @@
 package org.radarbase.producer.schema
 
 import kotlinx.serialization.Serializable
-import org.apache.avro.Schema
 
 /**
  * Parsed schema metadata from a Schema Registry.
@@ -33,7 +32,7 @@ data class SchemaMetadata(
     fun toParsedSchemaMetadata(defaultId: Int? = null) = ParsedSchemaMetadata(
         id = checkNotNull(id ?: defaultId) { "Need id to parse schema metadata" },
         version = version,
-        schema = Schema.Parser().parse(
+        schema = SchemaPool.parse(
             checkNotNull(schema) { "Need schema to parse it" },
         ),
     )
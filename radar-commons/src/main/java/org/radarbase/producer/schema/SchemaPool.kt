@@ -0,0 +1,68 @@
+package org.radarbase.producer.schema
+
+import org.apache.avro.Schema
+import org.apache.avro.SchemaNormalization
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Global pool of parsed schemas. Schema texts that were parsed before return the same [Schema]
+ * instance, so identical schemas are parsed once, are kept in memory once and can be compared by
+ * identity. Pooled schemas are shared, so they must not be modified. Schemas are only weakly
+ * referenced by the pool, so unused schemas can still be garbage collected.
+ */
+object SchemaPool {
+    private val schemas: ConcurrentMap<Long, SchemaReference> = ConcurrentHashMap()
+    private val queue = ReferenceQueue<Schema>()
+
+    /** Number of schemas in the pool, including ones that were not yet cleaned up. */
+    internal val size: Int
+        get() = schemas.size
+
+    /**
+     * Parse [schemaString], or return the pooled schema if the same text was parsed before.
+     * @throws org.apache.avro.SchemaParseException if the schema is not valid.
+     */
+    @JvmStatic
+    fun parse(schemaString: String): Schema {
+        purge()
+        val key = SchemaNormalization.fingerprint64(schemaString.toByteArray())
+        schemas[key]?.get(schemaString)?.let { return it }
+
+        val schema = Schema.Parser().parse(schemaString)
+        val reference = SchemaReference(key, schemaString, schema, queue)
+        while (true) {
+            val existing = schemas.putIfAbsent(key, reference)
+                ?: return schema
+            existing.get(schemaString)?.let { return it }
+            if (existing.text != schemaString) {
+                // Fingerprint collision with another schema, do not pool this one.
+                return schema
+            }
+            // The existing schema was garbage collected, replace it.
+            if (schemas.replace(key, existing, reference)) {
+                return schema
+            }
+        }
+    }
+
+    /** Remove entries of schemas that were garbage collected. */
+    private fun purge() {
+        while (true) {
+            val reference = queue.poll() as SchemaReference? ?: return
+            schemas.remove(reference.key, reference)
+        }
+    }
+
+    private class SchemaReference(
+        val key: Long,
+        val text: String,
+        schema: Schema,
+        queue: ReferenceQueue<Schema>,
+    ) : WeakReference<Schema>(schema, queue) {
+        /** Get the schema if it was parsed from [schemaString] and was not garbage collected. */
+        fun get(schemaString: String): Schema? = if (text == schemaString) get() else null
+    }
+}
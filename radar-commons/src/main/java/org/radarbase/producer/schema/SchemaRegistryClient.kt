@@ -0,0 +1,29 @@
+package org.radarbase.producer.schema
+
+import org.apache.avro.Schema
+import java.io.IOException
+
+/**
+ * Client of a schema registry. Subjects are named after a Kafka topic, see
+ * [SchemaRetriever.subject].
+ */
+interface SchemaRegistryClient {
+    /**
+     * Retrieve schema metadata of [version] of [subject]. If [version] is zero or negative, the
+     * latest version is retrieved.
+     */
+    @Throws(IOException::class)
+    suspend fun retrieveSchemaMetadata(subject: String, version: Int): ParsedSchemaMetadata
+
+    /** Add a schema to a subject.  */
+    @Throws(IOException::class)
+    suspend fun addSchema(subject: String, schema: Schema): ParsedSchemaMetadata
+
+    /** Request metadata for a schema on a subject.  */
+    @Throws(IOException::class)
+    suspend fun requestMetadata(subject: String, schema: Schema): ParsedSchemaMetadata
+
+    /** Retrieve a schema by its ID.  */
+    @Throws(IOException::class)
+    suspend fun retrieveSchemaById(id: Int): Schema
+}
@@ -29,7 +29,7 @@ class SchemaRestClient(
     httpClient: HttpClient,
     baseUrl: String,
     private val ioContext: CoroutineContext = Dispatchers.IO,
-) {
+) : SchemaRegistryClient {
     private val httpClient: HttpClient = httpClient.config {
         install(ContentNegotiation) {
             json(
@@ -75,7 +75,7 @@ class SchemaRestClient(
 
     /** Retrieve schema metadata from server.  */
     @Throws(IOException::class)
-    suspend fun retrieveSchemaMetadata(
+    override suspend fun retrieveSchemaMetadata(
         subject: String,
         version: Int,
     ): ParsedSchemaMetadata {
@@ -104,7 +104,7 @@ class SchemaRestClient(
 
     /** Add a schema to a subject.  */
     @Throws(IOException::class)
-    suspend fun addSchema(subject: String, schema: Schema): ParsedSchemaMetadata {
+    override suspend fun addSchema(subject: String, schema: Schema): ParsedSchemaMetadata {
         val result = schemaPost("subjects/$subject/versions", schema)
         return ParsedSchemaMetadata(
             id = checkNotNull(result.id) { "Missing schema ID in request result" },
@@ -115,7 +115,7 @@ class SchemaRestClient(
 
     /** Request metadata for a schema on a subject.  */
     @Throws(IOException::class)
-    suspend fun requestMetadata(
+    override suspend fun requestMetadata(
         subject: String,
         schema: Schema,
     ): ParsedSchemaMetadata {
@@ -128,7 +128,7 @@ class SchemaRestClient(
     }
 
     /** Retrieve schema metadata from server.  */
-    suspend fun retrieveSchemaById(id: Int): Schema =
+    override suspend fun retrieveSchemaById(id: Int): Schema =
         schemaGet("/schemas/ids/$id")
             .toParsedSchemaMetadata(id)
             .schema
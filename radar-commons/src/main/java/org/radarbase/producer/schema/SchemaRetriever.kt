@@ -18,39 +18,88 @@ package org.radarbase.producer.schema
 import io.ktor.client.HttpClient
 import io.ktor.client.HttpClientConfig
 import io.ktor.client.engine.cio.CIO
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import org.apache.avro.Schema
 import org.radarbase.kotlin.coroutines.CacheConfig
 import org.radarbase.kotlin.coroutines.CachedValue
+import org.radarbase.kotlin.coroutines.launchJoin
+import org.radarbase.topic.AvroTopic
 import org.radarbase.util.RadarProducerDsl
+import org.slf4j.LoggerFactory
+import java.io.Closeable
 import java.io.IOException
-import java.lang.ref.SoftReference
+import java.nio.file.Path
 import java.util.Objects.hash
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.coroutines.CoroutineContext
+import kotlin.time.Duration
 import kotlin.time.Duration.Companion.days
+import kotlin.time.Duration.Companion.hours
 import kotlin.time.Duration.Companion.minutes
-
-typealias VersionCache = ConcurrentMap<Int, CachedValue<ParsedSchemaMetadata>>
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
 
 /**
- * Retriever of an Avro Schema.
+ * Retriever of an Avro Schema. Schema metadata is cached in memory, with at most
+ * [Config.maxCacheSize] entries per cache. Expired entries are pruned every
+ * [Config.pruneInterval]. Call [close] to stop pruning and refreshing in the background.
  */
-open class SchemaRetriever(config: Config) {
-    private val idCache: ConcurrentMap<Int, SoftReference<Schema>> = ConcurrentHashMap()
-    private val schemaCache: ConcurrentMap<Schema, CachedValue<ParsedSchemaMetadata>> = ConcurrentHashMap()
-    private val subjectVersionCache: ConcurrentMap<String, VersionCache> = ConcurrentHashMap()
+open class SchemaRetriever(config: Config) : Closeable {
+    private val maxCacheSize = config.maxCacheSize
+    private val schemaTimeout = config.schemaTimeout
+
+    /**
+     * Listener to the events of all caches of this retriever. Hits and misses are reported once
+     * per lookup, not per cache that the lookup uses.
+     */
+    private val listener = schemaTimeout.listener
+
+    /** Schemas by ID, without boxing the IDs. */
+    private val idCache = BoundedIntCache<Schema>(maxCacheSize, listener)
+    private val subjectIdCache = BoundedCache<IdKey, ParsedSchemaMetadata>(maxCacheSize, listener)
+    private val schemaCache = BoundedCache<SchemaKey, CachedValue<ParsedSchemaMetadata>>(maxCacheSize, listener)
+    private val subjectVersionCache = BoundedCache<VersionKey, CachedValue<ParsedSchemaMetadata>>(maxCacheSize, listener)
+
+    private val pruneInterval = config.pruneInterval
+    private val nextPrune = AtomicReference<TimeMark?>(
+        pruneInterval?.let { TimeSource.Monotonic.markNow() + it },
+    )
 
     private val baseUrl = config.baseUrl
     private val ioContext = config.ioContext
-    private val httpClient = requireNotNull(config.httpClient) { "Missing HTTP client" }
+    private val httpClient = config.httpClient
+    private val registryClient = config.registryClient
 
-    val restClient: SchemaRestClient = SchemaRestClient(httpClient, baseUrl, ioContext)
+    val restClient: SchemaRestClient by lazy {
+        SchemaRestClient(
+            requireNotNull(httpClient) { "Missing HTTP client" },
+            baseUrl,
+            ioContext,
+        )
+    }
 
-    private val schemaTimeout = config.schemaTimeout
+    /** Client to use for schema registry requests. */
+    private val client: SchemaRegistryClient = registryClient ?: restClient
+
+    /** Job of background pruning and refreshing, cancelled by [close]. */
+    private val job = SupervisorJob()
+    private val scope = CoroutineScope(ioContext + job)
+    private val cacheConfig = schemaTimeout.copy(refreshContext = schemaTimeout.refreshContext + job)
+
+    private val prefetchParallelism = config.prefetchParallelism
+    private val prefetchSemaphore = Semaphore(prefetchParallelism)
+
+    private val cacheDirectory = config.cacheDirectory
+    private val fileCache: SchemaFileCache? = cacheDirectory?.let {
+        SchemaFileCache(SchemaFileCache.registryDirectory(it, baseUrl), schemaTimeout.refreshDuration, ioContext)
+    }
 
     /**
      * Add schema metadata to the retriever. This implementation only adds it to the cache.
@@ -59,7 +108,9 @@ open class SchemaRetriever(config: Config) {
     @Throws(IOException::class)
     suspend fun addSchema(topic: String, ofValue: Boolean, schema: Schema): Int = coroutineScope {
         val subject = subject(topic, ofValue)
-        val metadata = restClient.addSchema(subject, schema)
+        val metadata = client.addSchema(subject, schema)
+        fileCache?.put(subject, metadata)
+        cacheById(subject, metadata)
 
         if (metadata.version != null) {
             launch {
@@ -79,117 +130,191 @@ open class SchemaRetriever(config: Config) {
         ofValue: Boolean,
         version: Int,
     ): ParsedSchemaMetadata {
+        pruneIfNeeded()
         val subject = subject(topic, ofValue)
-        val versionMap = subjectVersionCache.computeIfAbsent(
-            subject,
-            ::ConcurrentHashMap,
-        )
-        val metadata = versionMap.cachedVersion(subject, version).get()
+        val metadata = cachedVersion(subject, version).get()
         if (version <= 0 && metadata.version != null) {
-            versionMap.cachedVersion(subject, metadata.version).set(metadata)
+            cachedVersion(subject, metadata.version).set(metadata)
         }
         return metadata
     }
 
-    /** Get schema metadata. Cached schema metadata will be used if present.  */
+    /**
+     * Get schema metadata by schema ID. Cached schema metadata will be used if present. At most
+     * one request is made to retrieve the schema. If the version of the schema in the topic is
+     * not yet known, the returned version is null. Use [resolveVersion] to retrieve it.
+     */
     @Throws(IOException::class)
     open suspend fun getById(
         topic: String,
         ofValue: Boolean,
         id: Int,
     ): ParsedSchemaMetadata {
+        pruneIfNeeded()
         val subject = subject(topic, ofValue)
-        val schema = idCache[id]?.get()
-            ?: restClient.retrieveSchemaById(id)
+        subjectIdCache[IdKey(subject, id)]?.let {
+            listener?.onHit()
+            return it
+        }
 
-        return cachedMetadata(subject, schema).get()
+        val cachedSchema = idCache[id]
+        if (cachedSchema != null) listener?.onHit() else listener?.onMiss()
+        val schema = cachedSchema
+            ?: fileCache?.getSchema(id)
+            ?: client.retrieveSchemaById(id).also { idCache[id] = it }
+
+        return ParsedSchemaMetadata(id = id, version = null, schema = schema)
+    }
+
+    /**
+     * Get [metadata] including its version in the topic. If the version is not known, it is
+     * requested from the schema registry.
+     */
+    @Throws(IOException::class)
+    open suspend fun resolveVersion(
+        topic: String,
+        ofValue: Boolean,
+        metadata: ParsedSchemaMetadata,
+    ): ParsedSchemaMetadata = if (metadata.version != null) {
+        metadata
+    } else {
+        cachedMetadata(subject(topic, ofValue), metadata.schema).get()
     }
 
-    /** Get the metadata of a specific schema in a topic.  */
+    /** Get the metadata of a specific schema in a topic. */
     @Throws(IOException::class)
     open suspend fun metadata(
         topic: String,
         ofValue: Boolean,
         schema: Schema,
     ): ParsedSchemaMetadata {
+        pruneIfNeeded()
         val subject = subject(topic, ofValue)
         return cachedMetadata(subject, schema).get()
     }
 
+    /**
+     * Resolve the key and value schema metadata of [topics] concurrently, so that it is cached
+     * before it is needed. At most [Config.prefetchParallelism] requests are made at the same
+     * time. Failures are logged and not rethrown, the metadata will then be fetched again when it
+     * is used.
+     * @param register whether to register the schemas with [addSchema] before resolving them.
+     */
+    open suspend fun prefetch(
+        topics: Iterable<AvroTopic<*, *>>,
+        register: Boolean = false,
+    ) {
+        topics
+            .flatMap { topic ->
+                listOf(
+                    Triple(topic.name, false, topic.keySchema),
+                    Triple(topic.name, true, topic.valueSchema),
+                )
+            }
+            .launchJoin { (topic, ofValue, schema) ->
+                prefetchSemaphore.withPermit {
+                    try {
+                        if (register) {
+                            addSchema(topic, ofValue, schema)
+                        }
+                        metadata(topic, ofValue, schema)
+                    } catch (ex: CancellationException) {
+                        throw ex
+                    } catch (ex: Exception) {
+                        logger.warn(
+                            "Failed to prefetch schema of {}: {}",
+                            subject(topic, ofValue),
+                            ex.toString(),
+                        )
+                    }
+                }
+            }
+    }
+
     private fun cachedMetadata(
         subject: String,
         schema: Schema,
-    ): CachedValue<ParsedSchemaMetadata> = schemaCache.computeIfAbsent(schema) {
-        CachedValue(schemaTimeout) {
-            val metadata = restClient.requestMetadata(subject, schema)
+    ): CachedValue<ParsedSchemaMetadata> = schemaCache.computeIfAbsent(SchemaKey(subject, schema)) {
+        CachedValue(cacheConfig) {
+            val metadata = client.requestMetadata(subject, schema)
+            fileCache?.put(subject, metadata)
             if (metadata.version != null) {
                 cachedVersion(subject, metadata.version).set(metadata)
             }
-            idCache[metadata.id] = SoftReference(metadata.schema)
+            cacheById(subject, metadata)
             metadata
+        }.also { cached ->
+            fileCache?.get(subject, schema)?.let { cached.offerFromFile(subject, it) }
         }
     }
 
-    private suspend fun cachedVersion(
+    private fun cachedVersion(
         subject: String,
         version: Int,
-    ): CachedValue<ParsedSchemaMetadata> = subjectVersionCache
-        .computeIfAbsent(
-            subject,
-            ::ConcurrentHashMap,
-        )
-        .cachedVersion(subject, version)
+    ): CachedValue<ParsedSchemaMetadata> = subjectVersionCache.computeIfAbsent(
+        VersionKey(subject, version.coerceAtLeast(0)),
+    ) {
+        CachedValue(cacheConfig) {
+            val metadata = client.retrieveSchemaMetadata(subject, version)
+            fileCache?.put(subject, metadata)
+            cachedMetadata(subject, metadata.schema).set(metadata)
+            cacheById(subject, metadata)
+            metadata
+        }.also { cached ->
+            fileCache?.get(subject, version)?.let { cached.offerFromFile(subject, it) }
+        }
+    }
 
-    private suspend fun VersionCache.cachedVersion(
+    /**
+     * Use metadata from the file cache, keeping the time it was fetched, so it is not used for
+     * longer than [CacheConfig.refreshDuration] after it was fetched.
+     */
+    private fun CachedValue<ParsedSchemaMetadata>.offerFromFile(
         subject: String,
-        version: Int,
-    ): CachedValue<ParsedSchemaMetadata> {
-        val useVersion = version.coerceAtLeast(0)
-        val versionId = computeIfAbsent(useVersion) {
-            CachedValue(schemaTimeout) {
-                val metadata = restClient.retrieveSchemaMetadata(subject, version)
-                cachedMetadata(subject, metadata.schema).set(metadata)
-                idCache[metadata.id] = SoftReference(metadata.schema)
-                metadata
-            }
+        cached: SchemaFileCache.CachedMetadata,
+    ) {
+        if (offer(cached.metadata, cached.age)) {
+            cacheById(subject, cached.metadata)
         }
-        return versionId
     }
 
-    private suspend fun <T> MutableCollection<CachedValue<T>>.prune() {
-        val iter = iterator()
-        while (iter.hasNext()) {
-            val staleValue = iter.next().getFromCache()
-                ?: continue
-
-            if (
-                staleValue is CachedValue.CacheError ||
-                (
-                    staleValue is CachedValue.CacheValue<T> &&
-                        staleValue.isExpired(schemaTimeout.refreshDuration)
-                    )
-            ) {
-                iter.remove()
-            }
+    /** Index [metadata] by its ID, so [getById] does not need to request it. */
+    private fun cacheById(subject: String, metadata: ParsedSchemaMetadata) {
+        idCache[metadata.id] = metadata.schema
+        if (metadata.version != null) {
+            subjectIdCache[IdKey(subject, metadata.id)] = metadata
         }
     }
 
+    private suspend fun CachedValue<*>.isPrunable(): Boolean {
+        val staleValue = getFromCache() ?: return false
+        return staleValue is CachedValue.CacheError ||
+            staleValue.isExpired(schemaTimeout.maxStaleDuration ?: schemaTimeout.refreshDuration)
+    }
+
     /**
      * Remove expired entries from cache.
      */
     open suspend fun pruneCache() = coroutineScope {
         launch {
-            schemaCache.values.prune()
+            schemaCache.removeIf { it.isPrunable() }
         }
 
         launch {
-            val subjectsIter = subjectVersionCache.values.iterator()
-            while (subjectsIter.hasNext()) {
-                val versionMap = subjectsIter.next()
-                versionMap.values.prune()
-                if (versionMap.isEmpty()) {
-                    subjectsIter.remove()
-                }
+            subjectVersionCache.removeIf { it.isPrunable() }
+        }
+    }
+
+    /** Prune the cache in the background if [Config.pruneInterval] has passed. */
+    private fun pruneIfNeeded() {
+        val interval = pruneInterval ?: return
+        val currentPrune = nextPrune.get() ?: return
+        if (
+            currentPrune.hasPassedNow() &&
+            nextPrune.compareAndSet(currentPrune, TimeSource.Monotonic.markNow() + interval)
+        ) {
+            scope.launch {
+                pruneCache()
             }
         }
     }
@@ -200,15 +325,71 @@ open class SchemaRetriever(config: Config) {
     open fun clearCache() {
         subjectVersionCache.clear()
         schemaCache.clear()
+        idCache.clear()
+        subjectIdCache.clear()
+    }
+
+    /**
+     * Stop pruning and refreshing the caches in the background. The retriever can still be
+     * used, but stale values are then only refreshed when they are requested.
+     */
+    override fun close() {
+        job.cancel()
     }
 
+    /**
+     * Key of a schema in a subject. Schemas cache their hash code, and schemas of the same topic
+     * or from a [SchemaPool] are the same instance, so they are compared by identity first. The
+     * full schema is compared rather than a canonical form fingerprint, since that ignores
+     * defaults and logical types, which the schema registry does not.
+     */
+    private data class SchemaKey(val subject: String, val schema: Schema)
+
+    private data class VersionKey(val subject: String, val version: Int)
+
+    private data class IdKey(val subject: String, val id: Int)
+
     @RadarProducerDsl
     class Config(
         val baseUrl: String,
     ) {
         var httpClient: HttpClient? = null
+
+        /**
+         * Schema registry client to use instead of a REST client on [baseUrl], for example
+         * an [EmbeddedSchemaRegistry]. If set, [httpClient] is not needed.
+         */
+        var registryClient: SchemaRegistryClient? = null
+
+        /**
+         * Cache configuration of schema metadata. Its [CacheConfig.listener], for example a
+         * [org.radarbase.kotlin.coroutines.CacheStats], receives the events of all schema caches.
+         */
         var schemaTimeout: CacheConfig = DEFAULT_SCHEMA_TIMEOUT_CONFIG
         var ioContext: CoroutineContext = Dispatchers.IO
+
+        /**
+         * Directory to persist fetched schema metadata in, so it can be reused after a restart.
+         * Persisted metadata is used for up to [CacheConfig.refreshDuration] of [schemaTimeout].
+         * If null, schema metadata is only cached in memory.
+         */
+        var cacheDirectory: Path? = null
+
+        /** Maximum number of concurrent requests made by [SchemaRetriever.prefetch]. */
+        var prefetchParallelism: Int = DEFAULT_PREFETCH_PARALLELISM
+
+        /**
+         * Maximum number of entries in each schema cache. The least recently used entries are
+         * evicted when a cache is full.
+         */
+        var maxCacheSize: Int = DEFAULT_MAX_CACHE_SIZE
+
+        /**
+         * Interval to remove expired entries from cache in the background. If null, expired
+         * entries are only removed when [SchemaRetriever.pruneCache] is called.
+         */
+        var pruneInterval: Duration? = DEFAULT_PRUNE_INTERVAL
+
         fun httpClient(config: HttpClientConfig<*>.() -> Unit) {
             httpClient = httpClient?.config(config)
                 ?: HttpClient(CIO)
@@ -222,11 +403,26 @@ open class SchemaRetriever(config: Config) {
 
             return baseUrl == other.baseUrl &&
                 httpClient == other.httpClient &&
+                registryClient == other.registryClient &&
                 schemaTimeout == other.schemaTimeout &&
-                ioContext == other.ioContext
+                ioContext == other.ioContext &&
+                cacheDirectory == other.cacheDirectory &&
+                prefetchParallelism == other.prefetchParallelism &&
+                maxCacheSize == other.maxCacheSize &&
+                pruneInterval == other.pruneInterval
         }
 
-        override fun hashCode(): Int = hash(baseUrl, httpClient, schemaTimeout, ioContext)
+        override fun hashCode(): Int = hash(
+            baseUrl,
+            httpClient,
+            registryClient,
+            schemaTimeout,
+            ioContext,
+            cacheDirectory,
+            prefetchParallelism,
+            maxCacheSize,
+            pruneInterval,
+        )
     }
 
     fun config(config: Config.() -> Unit): SchemaRetriever {
@@ -241,14 +437,26 @@ open class SchemaRetriever(config: Config) {
 
     private fun toConfig(): Config = Config(baseUrl = baseUrl).apply {
         httpClient = this@SchemaRetriever.httpClient
+        registryClient = this@SchemaRetriever.registryClient
         schemaTimeout = this@SchemaRetriever.schemaTimeout
         ioContext = this@SchemaRetriever.ioContext
+        cacheDirectory = this@SchemaRetriever.cacheDirectory
+        prefetchParallelism = this@SchemaRetriever.prefetchParallelism
+        maxCacheSize = this@SchemaRetriever.maxCacheSize
+        pruneInterval = this@SchemaRetriever.pruneInterval
     }
 
     companion object {
+        private val logger = LoggerFactory.getLogger(SchemaRetriever::class.java)
+
+        private const val DEFAULT_PREFETCH_PARALLELISM = 4
+        private const val DEFAULT_MAX_CACHE_SIZE = 10_000
+        private val DEFAULT_PRUNE_INTERVAL = 1.hours
+
         private val DEFAULT_SCHEMA_TIMEOUT_CONFIG = CacheConfig(
             refreshDuration = 1.days,
             retryDuration = 1.minutes,
+            maxStaleDuration = 7.days,
         )
 
         fun schemaRetriever(baseUrl: String, config: Config.() -> Unit): SchemaRetriever {
@@ -258,17 +466,5 @@ open class SchemaRetriever(config: Config) {
         /** The subject in the Avro Schema Registry, given a Kafka topic.  */
         @JvmStatic
         fun subject(topic: String, ofValue: Boolean): String = if (ofValue) "$topic-value" else "$topic-key"
-
-        private fun <K, V> MutableMap<K, V>.computeIfAbsent(
-            key: K,
-            newValueGenerator: () -> V,
-        ): V {
-            return get(key)
-                ?: run {
-                    val newValue = newValueGenerator()
-                    putIfAbsent(key, newValue)
-                        ?: newValue
-                }
-        }
     }
 }
@@ -17,6 +17,7 @@
 package org.radarbase.data;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import java.io.IOException;
 import org.apache.avro.specific.SpecificData;
@@ -73,4 +74,20 @@ public class AvroDatumDecoderTest {
         assertEquals(value.get("timeReceived"), 0.0d);
         assertEquals(value.get("bloodVolumePulse"), 0.0f);
     }
+
+    @Test
+    public void decodeBinaryReuse() throws IOException {
+        AvroDatumDecoder decoder = new AvroDatumDecoder(SpecificData.get(), true,
+                new AvroDatumDecoder.Config(true, true));
+        AvroDecoder.AvroReader<EmpaticaE4BloodVolumePulse> valueDecoder = decoder.reader(
+                EmpaticaE4BloodVolumePulse.getClassSchema(), EmpaticaE4BloodVolumePulse.class);
+
+        byte[] inputValue = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -128, 63};
+
+        EmpaticaE4BloodVolumePulse value = valueDecoder.decode(inputValue);
+        assertEquals(value.get("bloodVolumePulse"), 1.0f);
+        EmpaticaE4BloodVolumePulse nextValue = valueDecoder.decode(inputValue);
+        assertSame(value, nextValue);
+        assertEquals(nextValue.get("bloodVolumePulse"), 1.0f);
+    }
 }
@@ -17,7 +17,10 @@
 package org.radarbase.data;
 
 import junit.framework.TestCase;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.radarbase.topic.AvroTopic;
 import org.radarcns.kafka.ObservationKey;
 import org.radarcns.passive.empatica.EmpaticaE4BloodVolumePulse;
@@ -25,6 +28,7 @@ import org.radarcns.passive.phone.PhoneAcceleration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
@@ -76,6 +80,19 @@ public class AvroDatumEncoderTest extends TestCase {
         assertArrayEquals(expectedValue, value);
     }
 
+    public void testBinaryMatchesDatumWriter() throws IOException {
+        AvroDatumEncoder encoder = new AvroDatumEncoder(SpecificData.get(), true);
+        AvroEncoder.AvroWriter<PhoneAcceleration> valueEncoder = encoder.writer(PhoneAcceleration.getClassSchema(), PhoneAcceleration.class);
+        PhoneAcceleration value = new PhoneAcceleration(1.5d, 2.5d, 0.1f, 0.2f, 0.3f);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder binaryEncoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        new SpecificDatumWriter<>(PhoneAcceleration.class).write(value, binaryEncoder);
+        binaryEncoder.flush();
+
+        assertArrayEquals(out.toByteArray(), valueEncoder.encode(value));
+    }
+
     public void testSize() throws IOException {
         int n = 100;
 
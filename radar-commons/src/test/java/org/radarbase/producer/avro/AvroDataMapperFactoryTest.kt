@@ -2,16 +2,20 @@ package org.radarbase.producer.avro
 
 import org.apache.avro.Schema
 import org.apache.avro.SchemaValidationException
+import org.apache.avro.generic.GenericData
 import org.apache.avro.generic.GenericDatumReader
 import org.apache.avro.generic.GenericDatumWriter
 import org.apache.avro.io.DecoderFactory
 import org.apache.avro.io.EncoderFactory
+import org.apache.avro.util.Utf8
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
 import org.radarcns.kafka.ObservationKey
 import java.io.ByteArrayOutputStream
 import java.io.IOException
+import java.nio.ByteBuffer
 
 class AvroDataMapperFactoryTest {
     @Test
@@ -37,6 +41,27 @@ class AvroDataMapperFactoryTest {
         }
     }
 
+    @Test
+    @Throws(SchemaValidationException::class)
+    fun mapStructurallyIdentical() {
+        val relabeled = Schema.Parser().parse(
+            "{" +
+                "  \"namespace\": \"org.radarbase.key\"," +
+                "  \"type\": \"record\"," +
+                "  \"name\": \"MeasurementKey\"," +
+                "  \"doc\": \"Other documentation\"," +
+                "  \"fields\": [" +
+                "    {\"name\": \"userId\", \"type\": \"string\", \"default\": \"unknown\"}," +
+                "    {\"name\": \"sourceId\", \"type\": \"string\", \"aliases\": [\"source\"]}" +
+                "  ]" +
+                "}",
+        )
+        assertSame(
+            AvroDataMapperFactory.IDENTITY_MAPPER,
+            AvroDataMapperFactory.createMapper(MEASUREMENT_KEY_SCHEMA, relabeled, null),
+        )
+    }
+
     @Test
     @Throws(SchemaValidationException::class, IOException::class)
     fun mapEnumLarger() {
@@ -122,6 +147,51 @@ class AvroDataMapperFactoryTest {
         )
     }
 
+    @Test
+    @Throws(SchemaValidationException::class)
+    fun mapBytesToString() {
+        val mapper = AvroDataMapperFactory.createMapper(
+            Schema.create(Schema.Type.BYTES),
+            Schema.create(Schema.Type.STRING),
+            null,
+        )
+        assertEquals("YWI=", mapper.convertAvro(ByteBuffer.wrap("ab".toByteArray())))
+        assertEquals("YWJj", mapper.convertAvro(ByteBuffer.wrap("abc".toByteArray())))
+        assertEquals("YWI=", mapper.convertAvro(ByteBuffer.wrap("ab".toByteArray())))
+    }
+
+    @Test
+    @Throws(SchemaValidationException::class)
+    fun mapStringToNumber() {
+        val string = Schema.create(Schema.Type.STRING)
+        val intMapper = AvroDataMapperFactory.createMapper(string, Schema.create(Schema.Type.INT), -1)
+        assertEquals(12, intMapper.convertAvro(Utf8("12")))
+        assertEquals(-1, intMapper.convertAvro(Utf8("1.5")))
+        assertEquals(-1, intMapper.convertAvro(null))
+        val longMapper = AvroDataMapperFactory.createMapper(string, Schema.create(Schema.Type.LONG), -1L)
+        assertEquals(10_000_000_000L, longMapper.convertAvro("10000000000"))
+        val doubleMapper = AvroDataMapperFactory.createMapper(string, Schema.create(Schema.Type.DOUBLE), 0.0)
+        assertEquals(6.5, doubleMapper.convertAvro(Utf8("6.5")))
+        assertEquals(0.0, doubleMapper.convertAvro(Utf8("a")))
+    }
+
+    @Test
+    @Throws(SchemaValidationException::class)
+    fun mapStringToEnum() {
+        val enumSchema = SMALL_ENUM_SCHEMA.getField("e").schema()
+        val mapper = AvroDataMapperFactory.createMapper(Schema.create(Schema.Type.STRING), enumSchema, "A")
+        assertEquals(GenericData.EnumSymbol(enumSchema, "B"), mapper.convertAvro(Utf8("B")))
+        assertEquals(GenericData.EnumSymbol(enumSchema, "A"), mapper.convertAvro(Utf8("C")))
+        assertSame(mapper.convertAvro("B"), mapper.convertAvro(Utf8("B")))
+
+        val largeEnumSchema = LARGE_ENUM_SCHEMA.getField("e").schema()
+        val enumMapper = AvroDataMapperFactory.createMapper(enumSchema, largeEnumSchema, null)
+        assertEquals(
+            GenericData.EnumSymbol(largeEnumSchema, "B"),
+            enumMapper.convertAvro(GenericData.EnumSymbol(enumSchema, "B")),
+        )
+    }
+
     @Throws(IOException::class, SchemaValidationException::class)
     private fun doMap(from: Schema, to: Schema, value: String): String {
         val mapper = AvroDataMapperFactory.createMapper(from, to, null)
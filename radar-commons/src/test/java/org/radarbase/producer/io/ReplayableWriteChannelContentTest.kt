@@ -0,0 +1,56 @@
+package org.radarbase.producer.io
+
+import io.ktor.http.ContentType
+import io.ktor.util.toByteArray
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.close
+import io.ktor.utils.io.writeFully
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class ReplayableWriteChannelContentTest {
+    private val data = ByteArray(20_000) { it.toByte() }
+
+    @Test
+    fun replay() = runTest {
+        var writes = 0
+        val content = ReplayableWriteChannelContent(
+            FunctionalWriteChannelContent(ContentType.Application.OctetStream) {
+                writes++
+                it.writeFully(data)
+            },
+            maxBufferSize = 100_000,
+        )
+        assertArrayEquals(data, content.writeToBytes())
+        assertArrayEquals(data, content.writeToBytes())
+        assertEquals(1, writes)
+    }
+
+    @Test
+    fun tooLargeToReplay() = runTest {
+        var writes = 0
+        val content = ReplayableWriteChannelContent(
+            FunctionalWriteChannelContent(ContentType.Application.OctetStream) {
+                writes++
+                it.writeFully(data)
+            },
+            maxBufferSize = 10_000,
+        )
+        assertArrayEquals(data, content.writeToBytes())
+        assertArrayEquals(data, content.writeToBytes())
+        assertEquals(2, writes)
+    }
+
+    private suspend fun ReplayableWriteChannelContent.writeToBytes(): ByteArray = coroutineScope {
+        val channel = ByteChannel()
+        launch {
+            writeTo(channel)
+            channel.close()
+        }
+        channel.toByteArray()
+    }
+}
@@ -8,9 +8,12 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.test.runTest
 import org.apache.avro.SchemaValidationException
 import org.apache.avro.io.BinaryEncoder
+import org.apache.avro.io.DecoderFactory
 import org.apache.avro.io.EncoderFactory
+import org.apache.avro.specific.SpecificDatumReader
 import org.apache.avro.specific.SpecificDatumWriter
 import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.radarbase.data.AvroRecordData
 import org.radarbase.producer.schema.ParsedSchemaMetadata
@@ -58,6 +61,45 @@ class BinaryRecordContentTest {
         assertArrayEquals(EXPECTED, channel.toByteArray())
     }
 
+    @Test
+    fun writeChunkedToStream() = runTest {
+        val k = ObservationKey("test", "a", "b")
+        val values = (0 until 20).map { i ->
+            EmpaticaE4BloodVolumePulse(i.toDouble(), i.toDouble(), i.toFloat())
+        }
+        val t = AvroTopic(
+            "t",
+            k.schema,
+            values[0].schema,
+            k.javaClass,
+            values[0].javaClass,
+        )
+        val request = BinaryRecordContent(
+            AvroRecordData(t, k, values),
+            ParsedSchemaMetadata(2, 1, k.schema),
+            ParsedSchemaMetadata(4, 2, values[0].schema),
+            encodingChunkSize = 3,
+            encodingParallelism = 2,
+        )
+
+        val channel = ByteChannel()
+        launch {
+            val content = request.createContent(RestKafkaSender.KAFKA_REST_BINARY_ENCODING) as OutgoingContent.WriteChannelContent
+            content.writeTo(channel)
+            channel.close()
+        }
+        val decoder = DecoderFactory.get().binaryDecoder(channel.toByteArray(), null)
+        val recordSet = SpecificDatumReader<RecordSet>(RecordSet.`SCHEMA$`).read(null, decoder)
+        assertEquals("b", recordSet.sourceId)
+        assertEquals(values.size, recordSet.data.size)
+        val valueReader = SpecificDatumReader<EmpaticaE4BloodVolumePulse>(EmpaticaE4BloodVolumePulse.`SCHEMA$`)
+        recordSet.data.forEachIndexed { i, data ->
+            val bytes = ByteArray(data.remaining()).also { data.get(it) }
+            val value = valueReader.read(null, DecoderFactory.get().binaryDecoder(bytes, null))
+            assertEquals(values[i], value)
+        }
+    }
+
     @Test
     @Throws(IOException::class)
     fun expectedMatchesRecordSet() {
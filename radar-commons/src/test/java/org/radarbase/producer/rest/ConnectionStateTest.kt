@@ -15,16 +15,23 @@
  */
 package org.radarbase.producer.rest
 
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.UnconfinedTestDispatcher
+import kotlinx.coroutines.test.runTest
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.Timeout
 import java.util.concurrent.TimeUnit
 import kotlin.time.Duration.Companion.milliseconds
 
+@OptIn(ExperimentalCoroutinesApi::class)
 class ConnectionStateTest {
     @Test
     @Timeout(1, unit = TimeUnit.SECONDS)
@@ -51,6 +58,27 @@ class ConnectionStateTest {
         state.scope.cancel()
     }
 
+    @Test
+    fun testCurrentAndFlow() = runTest {
+        val state = ConnectionState(20.milliseconds, this, testScheduler.timeSource)
+        assertEquals(ConnectionState.State.UNKNOWN, state.current)
+        val states = async(UnconfinedTestDispatcher(testScheduler)) {
+            state.state.take(3).toList()
+        }
+        state.didConnect()
+        assertEquals(ConnectionState.State.CONNECTED, state.current)
+        delay(10.milliseconds)
+        state.didConnect()
+        delay(15.milliseconds)
+        assertEquals(ConnectionState.State.CONNECTED, state.current, "Timeout is extended by each connect")
+        assertEquals(
+            listOf(ConnectionState.State.UNKNOWN, ConnectionState.State.CONNECTED, ConnectionState.State.UNKNOWN),
+            states.await(),
+        )
+        assertEquals(ConnectionState.State.UNKNOWN, state.current)
+        assertEquals(30L, testScheduler.currentTime)
+    }
+
     private suspend inline fun ConnectionState.assertEqualTo(expected: ConnectionState.State) {
         assertEquals(expected, state.first())
     }
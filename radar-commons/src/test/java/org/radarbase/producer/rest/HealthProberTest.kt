@@ -0,0 +1,107 @@
+package org.radarbase.producer.rest
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+class HealthProberTest {
+    @Test
+    fun coalesceProbes() = runBlocking {
+        val state = ConnectionState(10.seconds)
+        val numProbes = AtomicInteger(0)
+        val release = CompletableDeferred<Unit>()
+        val prober = state.healthProber()
+        assertSame(prober, state.healthProber())
+
+        val results = (0 until 10).map {
+            async {
+                prober.probe {
+                    numProbes.incrementAndGet()
+                    release.await()
+                    state.didConnect()
+                    ConnectionState.State.CONNECTED
+                }
+            }
+        }
+        delay(50.milliseconds)
+        release.complete(Unit)
+        assertEquals(List(10) { ConnectionState.State.CONNECTED }, results.awaitAll())
+        assertEquals(1, numProbes.get())
+        state.scope.cancel()
+    }
+
+    @Test
+    fun awaitConnected() = runBlocking {
+        val state = ConnectionState(10.seconds)
+        val numProbes = AtomicInteger(0)
+        val prober = HealthProber(state, minInterval = 10.milliseconds, maxInterval = 20.milliseconds)
+        withTimeout(1.seconds) {
+            (0 until 5).map {
+                async {
+                    prober.awaitConnected {
+                        if (numProbes.incrementAndGet() < 3) {
+                            state.didDisconnect()
+                            ConnectionState.State.DISCONNECTED
+                        } else {
+                            state.didConnect()
+                            ConnectionState.State.CONNECTED
+                        }
+                    }
+                }
+            }.awaitAll()
+        }
+        assertEquals(3, numProbes.get())
+        assertEquals(ConnectionState.State.CONNECTED, state.current)
+        state.scope.cancel()
+    }
+
+    @Test
+    fun awaitConnectedAfterFailedProbe() = runBlocking {
+        val state = ConnectionState(10.seconds)
+        val prober = HealthProber(state, minInterval = 10.milliseconds, maxInterval = 20.milliseconds)
+        assertEquals(
+            ConnectionState.State.DISCONNECTED,
+            prober.probe { throw IllegalStateException("probe failed") },
+        )
+        assertEquals(ConnectionState.State.DISCONNECTED, state.current)
+
+        val numProbes = AtomicInteger(0)
+        withTimeout(1.seconds) {
+            prober.awaitConnected {
+                if (numProbes.incrementAndGet() < 2) {
+                    throw IllegalStateException("probe failed")
+                }
+                state.didConnect()
+                ConnectionState.State.CONNECTED
+            }
+        }
+        assertEquals(2, numProbes.get())
+        assertEquals(ConnectionState.State.CONNECTED, state.current)
+        state.scope.cancel()
+    }
+
+    @Test
+    fun probeWithRequestOfSender() = runBlocking {
+        val state = ConnectionState(10.seconds)
+        val prober = state.healthProber()
+        assertEquals(ConnectionState.State.DISCONNECTED, prober.probe { ConnectionState.State.DISCONNECTED })
+        assertEquals(
+            ConnectionState.State.CONNECTED,
+            prober.probe {
+                state.didConnect()
+                ConnectionState.State.CONNECTED
+            },
+        )
+        state.scope.cancel()
+    }
+}
@@ -0,0 +1,176 @@
+package org.radarbase.producer.rest
+
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mockito.mock
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.stub
+import org.radarbase.producer.rest.RestKafkaSender.Companion.restKafkaSender
+import org.radarbase.producer.rest.RestKafkaSenderTest.Companion.enqueueJson
+import org.radarbase.producer.schema.ParsedSchemaMetadata
+import org.radarbase.producer.schema.SchemaRetriever
+import org.radarbase.topic.AvroTopic
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneLight
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+class RestKafkaSenderEndpointsTest {
+    private lateinit var retriever: SchemaRetriever
+    private lateinit var servers: List<MockWebServer>
+    private val topic = AvroTopic(
+        "test",
+        ObservationKey.getClassSchema(),
+        PhoneLight.getClassSchema(),
+        ObservationKey::class.java,
+        PhoneLight::class.java,
+    )
+
+    @BeforeEach
+    fun setUp() {
+        servers = List(2) { MockWebServer().apply { start() } }
+        retriever = mock()
+        retriever.stub {
+            onBlocking { metadata("test", false, topic.keySchema) }
+                .doReturn(ParsedSchemaMetadata(10, 2, topic.keySchema))
+            onBlocking { metadata("test", true, topic.valueSchema) }
+                .doReturn(ParsedSchemaMetadata(10, 2, topic.valueSchema))
+        }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        servers.forEach { it.close() }
+    }
+
+    private fun sender(selection: EndpointSelection) = restKafkaSender {
+        baseUrl = servers[0].url("/").toString()
+        endpoints = listOf(servers[1].url("/").toString())
+        endpointSelection = selection
+        httpClient()
+        schemaRetriever = retriever
+    }
+
+    @Test
+    fun leastOutstanding() = runBlocking {
+        val sender = sender(EndpointSelection.LEAST_OUTSTANDING)
+        val topicSender = sender.sender(topic)
+        servers.forEach { server -> repeat(2) { server.enqueueJson("{\"offset\": 100}") } }
+        repeat(4) {
+            topicSender.send(ObservationKey("test", "a", "b$it"), PhoneLight(0.1, 0.2, 0.3f))
+        }
+        assertEquals(listOf(2, 2), servers.map { it.requestCount })
+        sender.scope.cancel()
+    }
+
+    @Test
+    fun consistentHash() = runBlocking {
+        val sender = sender(EndpointSelection.CONSISTENT_HASH)
+        val topicSender = sender.sender(topic)
+        servers.forEach { server -> repeat(3) { server.enqueueJson("{\"offset\": 100}") } }
+        val key = ObservationKey("test", "a", "b")
+        repeat(3) {
+            topicSender.send(key, PhoneLight(0.1, 0.2, 0.3f))
+        }
+        assertEquals(listOf(0, 3), servers.map { it.requestCount }.sorted())
+        sender.scope.cancel()
+    }
+
+    @Test
+    fun ejectAndReintroduce() = runBlocking {
+        val sender = sender(EndpointSelection.LEAST_OUTSTANDING)
+        val topicSender = sender.sender(topic)
+        val (first, second) = sender.endpoints
+        val key = ObservationKey("test", "a", "b")
+        val value = PhoneLight(0.1, 0.2, 0.3f)
+
+        // the first request goes to the first endpoint and is retried on the second
+        servers[0].enqueue(MockResponse().setResponseCode(500))
+        servers[1].enqueueJson("{\"offset\": 100}")
+        topicSender.send(key, value)
+        assertFalse(first.isAvailable)
+        assertTrue(second.isAvailable)
+        assertEquals(1, servers[1].requestCount)
+
+        repeat(3) { servers[1].enqueueJson("{\"offset\": 100}") }
+        repeat(3) { topicSender.send(key, value) }
+        assertEquals(4, servers[1].requestCount)
+        assertEquals(ConnectionState.State.CONNECTED, second.connectionState.current)
+
+        // the health probe of the first endpoint succeeds
+        servers[0].enqueue(MockResponse())
+        withTimeout(5.seconds) {
+            while (!first.isAvailable) delay(10.milliseconds)
+        }
+        servers[0].takeRequest()
+        assertEquals("HEAD", servers[0].takeRequest().method)
+        sender.scope.cancel()
+    }
+
+    @Test
+    fun failOnAllEndpoints() = runBlocking {
+        val sender = sender(EndpointSelection.LEAST_OUTSTANDING)
+        val topicSender = sender.sender(topic)
+        servers.forEach { it.enqueue(MockResponse().setResponseCode(500)) }
+        assertThrows(RestException::class.java) {
+            runBlocking { topicSender.send(ObservationKey("test", "a", "b"), PhoneLight(0.1, 0.2, 0.3f)) }
+        }
+        // each endpoint got the request once, before being probed
+        assertEquals(listOf("POST", "POST"), servers.map { it.takeRequest().method })
+        assertTrue(sender.endpoints.none { it.isAvailable })
+        sender.scope.cancel()
+    }
+
+    @Test
+    fun invalidRequestIsNotRetried() = runBlocking {
+        val sender = sender(EndpointSelection.LEAST_OUTSTANDING)
+        val topicSender = sender.sender(topic)
+
+        // the first request goes to the first endpoint
+        servers[0].enqueue(MockResponse().setResponseCode(422))
+        val ex = assertThrows(RestException::class.java) {
+            runBlocking { topicSender.send(ObservationKey("test", "a", "b"), PhoneLight(0.1, 0.2, 0.3f)) }
+        }
+        assertEquals(422, ex.status.value)
+        assertEquals(listOf(1, 0), servers.map { it.requestCount })
+        assertTrue(sender.endpoints.all { it.isAvailable })
+        assertEquals(ConnectionState.State.UNKNOWN, sender.endpoints[0].connectionState.current)
+        sender.scope.cancel()
+    }
+
+    @Test
+    fun shareEndpointStates() = runBlocking {
+        val sender = sender(EndpointSelection.LEAST_OUTSTANDING)
+        val otherSender = sender.config {
+            contentType = RestKafkaSender.KAFKA_REST_BINARY_ENCODING
+        }
+        assertEquals(
+            sender.endpoints.map { it.connectionState },
+            otherSender.endpoints.map { it.connectionState },
+        )
+
+        val thirdSender = restKafkaSender {
+            baseUrl = servers[0].url("/").toString()
+            endpoints = listOf(servers[1].url("/").toString())
+            endpointConnectionStates = sender.endpoints.associate { it.baseUrl to it.connectionState }
+            httpClient()
+            schemaRetriever = retriever
+        }
+        sender.endpoints[0].connectionState.didDisconnect()
+        assertFalse(thirdSender.endpoints[0].isAvailable)
+        assertTrue(thirdSender.endpoints[1].isAvailable)
+        sender.scope.cancel()
+        thirdSender.scope.cancel()
+    }
+}
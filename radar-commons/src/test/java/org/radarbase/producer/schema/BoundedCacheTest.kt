@@ -0,0 +1,41 @@
+package org.radarbase.producer.schema
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.radarbase.kotlin.coroutines.CacheStats
+
+class BoundedCacheTest {
+    @Test
+    fun evictLeastRecentlyUsed() {
+        val stats = CacheStats()
+        val cache = BoundedCache<Int, String>(3, stats)
+        cache[1] = "a"
+        cache[2] = "b"
+        cache[3] = "c"
+        Thread.sleep(1)
+        assertEquals("a", cache[1])
+        cache[4] = "d"
+
+        assertEquals(3, cache.size)
+        assertNull(cache[2])
+        assertEquals("a", cache[1])
+        assertEquals("d", cache[4])
+
+        val snapshot = stats.snapshot()
+        assertEquals(1, snapshot.evictions)
+        assertEquals(0, snapshot.hits)
+        assertEquals(0, snapshot.misses)
+    }
+
+    @Test
+    fun computeIfAbsent() {
+        val stats = CacheStats()
+        val cache = BoundedCache<Int, String>(10, stats)
+        assertEquals("a", cache.computeIfAbsent(1) { "a" })
+        assertEquals("a", cache.computeIfAbsent(1) { "b" })
+        assertEquals(1, cache.size)
+        assertEquals(0, stats.snapshot().hits)
+        assertEquals(0, stats.snapshot().misses)
+    }
+}
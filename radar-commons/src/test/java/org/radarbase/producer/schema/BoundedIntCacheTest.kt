@@ -0,0 +1,45 @@
+package org.radarbase.producer.schema
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.radarbase.kotlin.coroutines.CacheStats
+
+class BoundedIntCacheTest {
+    @Test
+    fun evictLeastRecentlyUsed() {
+        val stats = CacheStats()
+        val cache = BoundedIntCache<String>(3, stats)
+        cache[1] = "a"
+        cache[2] = "b"
+        cache[3] = "c"
+        Thread.sleep(1)
+        assertEquals("a", cache[1])
+        cache[4] = "d"
+
+        assertEquals(3, cache.size)
+        assertNull(cache[2])
+        assertEquals("a", cache[1])
+        assertEquals("d", cache[4])
+        assertEquals(1, stats.snapshot().evictions)
+    }
+
+    @Test
+    fun keepEntriesAfterRemoval() {
+        val cache = BoundedIntCache<Int>(100)
+        repeat(1000) { cache[it] = it }
+        assertTrue(cache.size <= 100)
+        // every entry that is left can still be found after entries were moved by evictions
+        val remaining = (0 until 1000).count { cache[it] == it }
+        assertEquals(cache.size, remaining)
+        assertEquals(999, cache[999])
+
+        cache[5] = 50
+        cache[5] = 51
+        assertEquals(51, cache[5])
+        cache.clear()
+        assertEquals(0, cache.size)
+        assertNull(cache[5])
+    }
+}
@@ -0,0 +1,72 @@
+package org.radarbase.producer.schema
+
+import kotlinx.coroutines.test.runTest
+import org.apache.avro.Schema
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.io.TempDir
+import org.radarbase.producer.rest.RestException
+import java.nio.file.Path
+
+class EmbeddedSchemaRegistryTest {
+    private val stringSchema = Schema.create(Schema.Type.STRING)
+    private val intSchema = Schema.create(Schema.Type.INT)
+
+    @Test
+    fun register() = runTest {
+        val registry = EmbeddedSchemaRegistry()
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), registry.addSchema("a-value", stringSchema))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), registry.addSchema("a-value", stringSchema))
+        assertEquals(ParsedSchemaMetadata(2, 2, intSchema), registry.addSchema("a-value", intSchema))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), registry.addSchema("b-value", stringSchema))
+
+        assertEquals(intSchema, registry.retrieveSchemaById(2))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), registry.requestMetadata("a-value", stringSchema))
+        assertEquals(ParsedSchemaMetadata(1, 1, stringSchema), registry.retrieveSchemaMetadata("a-value", 1))
+        assertEquals(ParsedSchemaMetadata(2, 2, intSchema), registry.retrieveSchemaMetadata("a-value", -1))
+
+        assertThrows<RestException> { registry.requestMetadata("b-value", intSchema) }
+        assertThrows<RestException> { registry.retrieveSchemaMetadata("a-value", 3) }
+        assertThrows<RestException> { registry.retrieveSchemaById(3) }
+    }
+
+    @Test
+    fun distinguishDefaultsAndLogicalTypes() = runTest {
+        val registry = EmbeddedSchemaRegistry()
+        val long = Schema.create(Schema.Type.LONG)
+        val timestamp = Schema.Parser().parse("{\"type\":\"long\",\"logicalType\":\"timestamp-millis\"}")
+        val record = Schema.Parser().parse(
+            "{\"type\":\"record\",\"name\":\"A\",\"fields\":[{\"name\":\"a\",\"type\":\"int\",\"default\":1}]}",
+        )
+        val otherDefault = Schema.Parser().parse(
+            "{\"type\":\"record\",\"name\":\"A\",\"fields\":[{\"name\":\"a\",\"type\":\"int\",\"default\":2}]}",
+        )
+        assertEquals(ParsedSchemaMetadata(1, 1, long), registry.addSchema("a-value", long))
+        assertEquals(ParsedSchemaMetadata(2, 2, timestamp), registry.addSchema("a-value", timestamp))
+        assertEquals(ParsedSchemaMetadata(3, 1, record), registry.addSchema("b-value", record))
+        assertEquals(ParsedSchemaMetadata(4, 2, otherDefault), registry.addSchema("b-value", otherDefault))
+        assertEquals(ParsedSchemaMetadata(2, 2, timestamp), registry.requestMetadata("a-value", timestamp))
+    }
+
+    @Test
+    fun persist(@TempDir directory: Path) = runTest {
+        EmbeddedSchemaRegistry(directory).apply {
+            addSchema("a-value", stringSchema)
+            addSchema("a-value", intSchema)
+        }
+        val registry = EmbeddedSchemaRegistry(directory)
+        assertEquals(ParsedSchemaMetadata(2, 2, intSchema), registry.retrieveSchemaMetadata("a-value", 2))
+        assertEquals(ParsedSchemaMetadata(3, 1, Schema.create(Schema.Type.LONG)), registry.addSchema("b-value", Schema.create(Schema.Type.LONG)))
+    }
+
+    @Test
+    fun schemaRetriever() = runTest {
+        val registry = EmbeddedSchemaRegistry()
+        val retriever = EmbeddedSchemaRegistry.schemaRetriever(registry)
+        val id = retriever.addSchema("a", true, stringSchema)
+        assertEquals(ParsedSchemaMetadata(id, 1, stringSchema), retriever.metadata("a", true, stringSchema))
+        assertEquals(ParsedSchemaMetadata(id, 1, stringSchema), retriever.getById("a", true, id))
+        assertEquals(ParsedSchemaMetadata(id, 1, stringSchema), retriever.getByVersion("a", true, 1))
+    }
+}
@@ -0,0 +1,56 @@
+package org.radarbase.producer.schema
+
+import kotlinx.coroutines.test.runTest
+import org.apache.avro.Schema
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Instant
+import kotlin.time.Duration.Companion.hours
+import kotlin.time.Duration.Companion.minutes
+
+class SchemaFileCacheTest {
+    @TempDir
+    lateinit var directory: Path
+
+    @Test
+    fun registryDirectory() {
+        assertEquals(
+            SchemaFileCache.registryDirectory(directory, "http://a/schema/"),
+            SchemaFileCache.registryDirectory(directory, "http://a/schema"),
+        )
+        assertNotEquals(
+            SchemaFileCache.registryDirectory(directory, "http://a/schema/"),
+            SchemaFileCache.registryDirectory(directory, "http://b/schema/"),
+        )
+    }
+
+    @Test
+    fun keepAge() {
+        val fetchedAt = Instant.now().minusSeconds(3600).toEpochMilli()
+        Files.writeString(
+            directory.resolve(SchemaFileCache.CACHE_FILE_NAME),
+            """{"subject":"a-value","id":1,"version":2,"schema":"\"string\"","fetchedAt":$fetchedAt}""" + "\n",
+        )
+        val cache = SchemaFileCache(directory, 2.hours)
+        val cached = cache.get("a-value", 2)
+        assertEquals(ParsedSchemaMetadata(1, 2, Schema.create(Schema.Type.STRING)), cached?.metadata)
+        assertTrue(cached!!.age > 59.minutes && cached.age < 61.minutes, "Age ${cached.age} is kept")
+    }
+
+    @Test
+    fun compactOnWrite() = runTest {
+        val cache = SchemaFileCache(directory, 2.hours)
+        val metadata = ParsedSchemaMetadata(1, 2, Schema.create(Schema.Type.STRING))
+        repeat(500) {
+            cache.put("a-value", metadata)
+        }
+        val numberOfLines = Files.readAllLines(directory.resolve(SchemaFileCache.CACHE_FILE_NAME)).size
+        assertTrue(numberOfLines <= 102, "Cache file with $numberOfLines lines is compacted")
+        assertEquals(metadata, SchemaFileCache(directory, 2.hours).get("a-value", 2)?.metadata)
+    }
+}
@@ -0,0 +1,16 @@
+package org.radarbase.producer.schema
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+
+class SchemaPoolTest {
+    @Test
+    fun parseShared() {
+        val schemaString = """{"type":"record","name":"A","namespace":"org.radarbase.test","fields":[{"name":"a","type":"int"}]}"""
+        val schema = SchemaPool.parse(schemaString)
+        assertSame(schema, SchemaPool.parse(String(schemaString.toCharArray())))
+        assertSame(schema, SchemaMetadata(id = 1, schema = schemaString).toParsedSchemaMetadata().schema)
+        assertEquals("A", schema.name)
+    }
+}
@@ -16,6 +16,7 @@
 package org.radarbase.producer.schema
 
 import io.ktor.client.plugins.defaultRequest
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.test.runTest
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
@@ -25,11 +26,18 @@ import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.io.TempDir
 import org.radarbase.producer.io.timeout
 import org.radarbase.producer.rest.RestKafkaSenderTest.Companion.enqueueJson
 import org.radarbase.producer.schema.SchemaRetriever.Companion.schemaRetriever
 import org.radarbase.producer.schema.SchemaRetriever.Companion.subject
+import org.radarbase.topic.AvroTopic
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneLight
 import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.time.Duration.Companion.seconds
 
 class SchemaRetrieverTest {
@@ -117,4 +125,98 @@ class SchemaRetrieverTest {
             request.body.readUtf8(),
         )
     }
+
+    @Test
+    fun metadataDistinguishesLogicalTypes() = runTest {
+        val plain = Schema.Parser().parse("{\"type\":\"long\"}")
+        val timestamp = Schema.Parser().parse("{\"type\":\"long\",\"logicalType\":\"timestamp-millis\"}")
+        mockServer.enqueueJson("{\"id\":10,\"version\":1}")
+        mockServer.enqueueJson("{\"id\":11,\"version\":2}")
+        assertEquals(10, retriever.metadata("bla", true, plain).id)
+        assertEquals(11, retriever.metadata("bla", true, timestamp).id)
+        assertEquals(10, retriever.metadata("bla", true, plain).id)
+        assertEquals(2, mockServer.requestCount)
+    }
+
+    @Test
+    fun getByIdSingleRequest() = runTest {
+        mockServer.enqueueJson("{\"schema\":\"\\\"string\\\"\"}")
+        val metadata = retriever.getById("bla", true, 10)
+        assertEquals(ParsedSchemaMetadata(10, null, Schema.create(Schema.Type.STRING)), metadata)
+        assertEquals("/schemas/ids/10", mockServer.takeRequest().path)
+        assertEquals(metadata, retriever.getById("bla", true, 10))
+        assertEquals(1, mockServer.requestCount)
+
+        mockServer.enqueueJson("{\"id\":10,\"version\":2}")
+        val resolved = retriever.resolveVersion("bla", true, metadata)
+        assertEquals(ParsedSchemaMetadata(10, 2, Schema.create(Schema.Type.STRING)), resolved)
+        assertEquals(resolved, retriever.getById("bla", true, 10))
+        assertEquals(2, mockServer.requestCount)
+    }
+
+    @Test
+    fun persistentCache(@TempDir cacheDir: Path) = runTest {
+        val baseUrl = "http://${mockServer.hostName}:${mockServer.port}/base/"
+        val cachingRetriever = retriever.config {
+            cacheDirectory = cacheDir
+        }
+        mockServer.enqueueJson("{\"id\":10,\"version\":2,\"schema\":\"\\\"string\\\"\"}")
+        val metadata = cachingRetriever.getByVersion("bla", true, 2)
+        assertEquals(1, mockServer.requestCount)
+
+        val restartedRetriever = schemaRetriever(baseUrl) {
+            httpClient {
+                timeout(1.seconds)
+            }
+            cacheDirectory = cacheDir
+        }
+        assertEquals(metadata, restartedRetriever.getByVersion("bla", true, 2))
+        assertEquals(metadata, restartedRetriever.metadata("bla", true, Schema.create(Schema.Type.STRING)))
+        assertEquals(1, mockServer.requestCount)
+    }
+
+    @Test
+    fun prefetchBoundedAndSafe() = runTest {
+        val running = AtomicInteger(0)
+        val maxRunning = AtomicInteger(0)
+        val requested = ConcurrentHashMap.newKeySet<String>()
+        val prefetchingRetriever = schemaRetriever("http://localhost/") {
+            prefetchParallelism = 2
+            registryClient = object : SchemaRegistryClient {
+                override suspend fun requestMetadata(subject: String, schema: Schema): ParsedSchemaMetadata {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+                    try {
+                        requested += subject
+                        delay(10)
+                        return when (subject) {
+                            "t1-value" -> throw IllegalStateException("failed")
+                            "t2-value" -> throw IOException("failed")
+                            else -> ParsedSchemaMetadata(1, 1, schema)
+                        }
+                    } finally {
+                        running.decrementAndGet()
+                    }
+                }
+
+                override suspend fun retrieveSchemaMetadata(subject: String, version: Int) = throw UnsupportedOperationException()
+                override suspend fun addSchema(subject: String, schema: Schema) = throw UnsupportedOperationException()
+                override suspend fun retrieveSchemaById(id: Int) = throw UnsupportedOperationException()
+            }
+        }
+        val topics = (0 until 5).map { i ->
+            AvroTopic(
+                "t$i",
+                ObservationKey.getClassSchema(),
+                PhoneLight.getClassSchema(),
+                ObservationKey::class.java,
+                PhoneLight::class.java,
+            )
+        }
+
+        prefetchingRetriever.prefetch(topics)
+
+        assertEquals(10, requested.size)
+        assertEquals(2, maxRunning.get())
+        prefetchingRetriever.close()
+    }
 }